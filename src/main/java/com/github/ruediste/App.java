@@ -1,14 +1,19 @@
 package com.github.ruediste;
 
 import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.OutputStream;
 import java.util.ArrayList;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.UUID;
 import java.util.stream.StreamSupport;
 
 import com.github.ruediste.GerberWriter.ApertureArgs;
 import com.github.ruediste.GerberWriter.CopperLayerType;
+import com.github.ruediste.Netlist.TestPoint;
 
 import static com.github.ruediste.Vector.vector;
 
@@ -18,6 +23,10 @@ import static com.github.ruediste.Vector.vector;
  */
 public class App {
     public static void main(String[] args) throws FileNotFoundException, Exception {
+        if (args.length > 0 && args[0].equals("--dry-run")) {
+            new App().dryRun().forEach((fileName, statistics) -> System.out.println(fileName + ": " + statistics));
+            return;
+        }
         new App().run();
     }
 
@@ -39,6 +48,49 @@ public class App {
     double soldermaskExpansion = 0.038;
     double raster = 2.54;
 
+    /**
+     * Leave a margin of one cell left of and below each board and print the
+     * labels there, on both silk layers. This moves the boards, so the artwork of
+     * the base files has to match. Otherwise the labels are printed with
+     * {@link #cellLabelHeight} on the bottom silk, in the free spots within the
+     * cells.
+     */
+    boolean labelMargin = false;
+    double labelHeight = 0.8;
+    double labelStrokeWidth = 0.15;
+    double cellLabelHeight = 0.5;
+    double cellLabelStrokeWidth = 0.1;
+
+    /**
+     * Number of cells along each side of a board
+     */
+    int boardSize = 4;
+
+    /**
+     * One board is drawn for each combination of outer and inner jumper gap. The
+     * pad gaps are used in turn.
+     */
+    List<Double> outerGaps = List.of(0.2, 0.3);
+    List<Double> innerGaps = List.of(0.15, 0.25);
+    List<Double> padGaps = List.of(0.3, 0.5);
+
+    /**
+     * Raster size used to extract the nets. Has to be well below the smallest
+     * gap.
+     */
+    double netlistResolution = 0.01;
+
+    /**
+     * Set during the connectivity pass
+     */
+    NetlistExtractor netlistExtractor;
+
+    /**
+     * Set during the output pass. Null when appending to the base files, since
+     * their copper is not known to the extractor.
+     */
+    Netlist netlist;
+
     public GerberWriter copperLayer(int layerNr) {
         switch (layerNr) {
             case 0:
@@ -78,27 +130,135 @@ public class App {
 
     UUID ident = UUID.randomUUID();
     String prefix = "protoboard-";
+    String baseDirectory = "base/";
+    /**
+     * Append the generated geometry to the files in the {@link #baseDirectory}.
+     * Otherwise standalone files with file attributes are generated. No netlist
+     * is generated when appending.
+     */
     boolean append = true;
 
+    /**
+     * Group the objects by aperture and order them along a Hilbert curve. Off by
+     * default, it only saves a few aperture selections.
+     */
+    boolean sortObjects = false;
+
+    /**
+     * Format and write the output files in separate threads. Off by default, no
+     * gain has been measured yet.
+     */
+    boolean pipelined = false;
+
+    /**
+     * Opens the output files
+     */
+    public interface OutputFactory {
+        OutputStream open(String fileName) throws IOException;
+    }
+
+    private OutputFactory output;
+
     private GerberWriter openWriter(String suffix) throws IOException {
-        return new GerberWriter(ident, prefix + suffix, "base/" + prefix + suffix);
+        if (!append)
+            return new GerberWriter(ident, output.open(prefix + suffix));
+        return new GerberWriter(ident, output.open(prefix + suffix), baseDirectory + prefix + suffix);
     }
 
-    public void run() throws Exception {
-        top = openWriter("F_Cu.gbr");
-        topMask = openWriter("F_Mask.gbr");
-        topSilk = openWriter("F_Silkscreen.gbr");
-        in1 = openWriter("In1_Cu.gbr");
-        in2 = openWriter("In2_Cu.gbr");
-        bottom = openWriter("B_Cu.gbr");
-        bottomMask = openWriter("B_Mask.gbr");
-        bottomSilk = openWriter("B_Silkscreen.gbr");
-        pth = openWriter("PTH-drl.gbr");
-        edgeCuts = openWriter("Edge_Cuts.gbr");
+    private interface WriterFactory {
+        GerberWriter open(String suffix) throws IOException;
+    }
+
+    private void openWriters(WriterFactory factory) throws IOException {
+        top = factory.open("F_Cu.gbr");
+        topMask = factory.open("F_Mask.gbr");
+        topSilk = factory.open("F_Silkscreen.gbr");
+        in1 = factory.open("In1_Cu.gbr");
+        in2 = factory.open("In2_Cu.gbr");
+        bottom = factory.open("B_Cu.gbr");
+        bottomMask = factory.open("B_Mask.gbr");
+        bottomSilk = factory.open("B_Silkscreen.gbr");
+        pth = factory.open("PTH-drl.gbr");
+        edgeCuts = factory.open("Edge_Cuts.gbr");
 
         allLayers = List.of(top, topMask, topSilk, in1, in2, bottom, bottomMask, bottomSilk, pth, edgeCuts);
+    }
+
+    /**
+     * Close all writers, even if some fail
+     */
+    private void closeWriters() throws Exception {
+        Exception failure = null;
+        for (GerberWriter g : allLayers) {
+            try {
+                g.close();
+            } catch (Exception e) {
+                if (failure == null)
+                    failure = e;
+                else
+                    failure.addSuppressed(e);
+            }
+        }
+        if (failure != null)
+            throw failure;
+    }
 
+    public void run() throws Exception {
+        run(fileName -> new FileOutputStream(fileName, false));
+    }
+
+    public void run(OutputFactory output) throws Exception {
+        this.output = output;
+        generate(this::openWriter, pipelined);
+        if (netlist != null)
+            netlist.writeIpcD356(output.open(prefix + "netlist.ipc"), layerCount);
+    }
+
+    /**
+     * Run all geometry without formatting or writing any file. Returns the exact
+     * statistics of each gerber file, by file name.
+     */
+    public Map<String, LayerStatistics> dryRun() throws Exception {
+        var result = new LinkedHashMap<String, LayerStatistics>();
+        generate(suffix -> {
+            var statistics = new LayerStatistics();
+            result.put(prefix + suffix, statistics);
+            if (!append)
+                return new GerberWriter(ident, statistics);
+            return new GerberWriter(ident, statistics, baseDirectory + prefix + suffix);
+        }, false);
+        return result;
+    }
+
+    private void generate(WriterFactory factory, boolean pipelined) throws Exception {
+        // connectivity pass: the nets have to be known before the pads are written.
+        // The copper of the base files is not parsed, so the nets would be
+        // incomplete when appending.
+        netlist = null;
+        if (!append) {
+            netlistExtractor = new NetlistExtractor(netlistResolution);
+            openWriters(suffix -> new GerberWriter(ident, new LayerStatistics()));
+            try {
+                for (int i = 0; i < layerCount; i++)
+                    copperLayer(i).geometryListener(netlistExtractor.copperLayer(i));
+                pth.geometryListener(netlistExtractor.drillLayer());
+                allLayers.forEach(GerberWriter::polarityDark);
+                drawPanel();
+            } finally {
+                closeWriters();
+            }
+            netlist = netlistExtractor.extract();
+            netlistExtractor = null;
+        }
+
+        // output pass
+        openWriters(factory);
         try {
+            allLayers.forEach(g -> {
+                g.sortObjects(sortObjects);
+                if (pipelined)
+                    g.pipelined();
+            });
             if (!append) {
                 top.attrFileFunctionCopper(1, CopperLayerType.Top);
                 top.attrFilePolarity(true);
@@ -127,38 +287,58 @@ public class App {
                 allLayers.forEach(GerberWriter::polarityDark);
             }
 
-            double connectionWidth = 0.2;
-
-            Via via = new Via(0.5, 0.3, connectionWidth, 0.2, 0.3);
-
-            int x = 0;
-            int y = 0;
-            int i = 0;
-            var pads = List.of(new Pad(0.3), new Pad(0.5));
-
-            for (double outerGap : List.of(0.2, 0.3)) {
-                for (double innerGap : List.of(0.15, 0.25)) {
-                    double copperDiameter = 0.75;
-                    CircularSolderJumper jumper = new CircularSolderJumper(copperDiameter, outerGap, innerGap,
-                            connectionWidth);
-                    drawBoard(x * raster, y * raster, raster, 4, 4,
-                            jumper,
-                            pads.get(i % pads.size()),
-                            via);
-                    i++;
-                    x += 4;
-                }
-                y += 4;
-                x = 0;
-            }
-
+            drawPanel();
         } finally {
-            for (GerberWriter g : allLayers) {
-                g.close();
+            closeWriters();
+        }
+    }
+
+    private void drawPanel() {
+        double connectionWidth = 0.2;
+
+        Via via = new Via(0.5, 0.3, connectionWidth, 0.2, 0.3);
+
+        int x = 0;
+        int y = 0;
+        int i = 0;
+        int margin = labelMargin ? 1 : 0;
+        var pads = padGaps.stream().map(Pad::new).toList();
+
+        for (double outerGap : outerGaps) {
+            for (double innerGap : innerGaps) {
+                double copperDiameter = 0.75;
+                CircularSolderJumper jumper = new CircularSolderJumper(copperDiameter, outerGap, innerGap,
+                        connectionWidth);
+                var pad = pads.get(i % pads.size());
+                drawBoard((x + margin) * raster, (y + margin) * raster, raster, boardSize, boardSize,
+                        jumper,
+                        pad,
+                        via,
+                        List.of(hundredths(outerGap), hundredths(innerGap), hundredths(pad.gap)));
+                i++;
+                x += boardSize + margin;
             }
+            y += boardSize + margin;
+            x = 0;
         }
     }
 
+    /**
+     * Format a length for the variant labels, which show outer gap, inner gap and
+     * pad gap in 1/100 mm
+     */
+    private String hundredths(double value) {
+        return String.valueOf(Math.round(value * 100));
+    }
+
+    /**
+     * Net of the test point at the given location. Null during the connectivity
+     * pass.
+     */
+    String net(int layer, double x, double y) {
+        return netlist == null ? null : netlist.net(layer, x, y);
+    }
+
     void flushQueue() {
         queue.forEach(Runnable::run);
         queue.clear();
@@ -168,8 +348,15 @@ public class App {
         queue.add(r);
     }
 
+    /**
+     * Draw a board of width x height cells.
+     *
+     * @param variantLabels labels describing the variant, printed in the bottom
+     *                      row, or below the board with {@link #labelMargin},
+     *                      starting with the second column
+     */
     private void drawBoard(double originX, double originY, double raster, int width, int height,
-            SolderJumper jumper, Pad pad, Via via) {
+            SolderJumper jumper, Pad pad, Via via, List<String> variantLabels) {
         for (int ix = 0; ix < width; ix++) {
             for (int iy = 0; iy < height; iy++) {
                 pad.flash(0, originX + ix * raster, originY + iy * raster, true);
@@ -223,6 +410,61 @@ public class App {
 
         flushQueue();
 
+        if (labelMargin)
+            drawMarginLabels(originX, originY, raster, width, height, variantLabels);
+        else
+            drawCellLabels(originX, originY, raster, width, height, variantLabels);
+    }
+
+    /**
+     * Labels in the margin left of and below the board. The margin below holds
+     * two lines: the column numbers and the variant labels. Printed on both sides,
+     * as there is no copper in the margin.
+     */
+    private void drawMarginLabels(double originX, double originY, double raster, int width, int height,
+            List<String> variantLabels) {
+        double lineOffset = 0.75 * labelHeight;
+        for (int ix = 0; ix < width; ix++) {
+            marginLabel(String.valueOf(ix + 1), originX + (ix + 0.5) * raster, originY - raster / 2 + lineOffset);
+        }
+        for (int iy = 0; iy < height; iy++) {
+            marginLabel(String.valueOf(iy + 1), originX - raster / 2, originY + (iy + 0.5) * raster);
+        }
+        for (int i = 0; i < variantLabels.size() && i + 1 < width; i++) {
+            marginLabel(variantLabels.get(i), originX + (i + 1.5) * raster, originY - raster / 2 - lineOffset);
+        }
+    }
+
+    private void marginLabel(String text, double x, double y) {
+        topSilk.polarityDark().text(text, x, y, labelHeight, labelStrokeWidth, false);
+        bottomSilk.polarityDark().text(text, x, y, labelHeight, labelStrokeWidth, true);
+    }
+
+    /**
+     * Labels in the free spots within the cells, which are off the diagonal of
+     * the via connection. Column numbers go to the top right of the top row, row
+     * numbers to the bottom left of the left column. Only on the bottom silk,
+     * since the top pads are exposed and cover almost the whole cell.
+     */
+    private void drawCellLabels(double originX, double originY, double raster, int width, int height,
+            List<String> variantLabels) {
+        double labelOffset = raster / 4;
+        int firstColumn = (int) Math.round(originX / raster) + 1;
+        int firstRow = (int) Math.round(originY / raster) + 1;
+        for (int ix = 0; ix < width; ix++) {
+            cellLabel(String.valueOf(firstColumn + ix), originX + (ix + 1) * raster - labelOffset,
+                    originY + height * raster - labelOffset);
+        }
+        for (int iy = 0; iy < height; iy++) {
+            cellLabel(String.valueOf(firstRow + iy), originX + labelOffset, originY + iy * raster + labelOffset);
+        }
+        for (int i = 0; i < variantLabels.size() && i + 1 < width; i++) {
+            cellLabel(variantLabels.get(i), originX + (i + 1) * raster + labelOffset, originY + labelOffset);
+        }
+    }
+
+    private void cellLabel(String text, double x, double y) {
+        bottomSilk.polarityDark().text(text, x, y, cellLabelHeight, cellLabelStrokeWidth, true);
     }
 
     private enum JumperType {
@@ -400,8 +642,13 @@ public class App {
         }
 
         public void flash(int layer, double x, double y, boolean mask) {
-            copperLayer(layer).polarityDark().apertureRectangle(raster - gap, raster - gap).flash(x + raster / 2,
-                    y + raster / 2);
+            if (netlistExtractor != null)
+                netlistExtractor.testPoint(new TestPoint(layer, x + raster / 2, y + raster / 2, raster - gap,
+                        raster - gap, 0, !mask));
+            copperLayer(layer).polarityDark().apertureRectangle(raster - gap, raster - gap)
+                    .net(net(layer, x + raster / 2, y + raster / 2))
+                    .flash(x + raster / 2, y + raster / 2)
+                    .net(null);
             if (mask)
                 maskLayer(layer).polarityDark()
                         .apertureRectangle(raster - gap + 2 * soldermaskExpansion,
@@ -432,6 +679,10 @@ public class App {
 
             double outerDiameter = diameter + 2 * gap;
 
+            if (netlistExtractor != null)
+                netlistExtractor
+                        .testPoint(new TestPoint(TestPoint.THROUGH_HOLE, x, y, diameter, diameter, holeSize, true));
+
             // add gap around via on top, bottom and unconnected layers
             for (int i = 0; i < layerCount; i++) {
                 if (i == 0 || i == layerCount - 1 || i != layer)
@@ -455,8 +706,9 @@ public class App {
 
             // circles on all layers
             queue(() -> {
+                var net = net(TestPoint.THROUGH_HOLE, x, y);
                 for (int i = 0; i < layerCount; i++) {
-                    copperLayer(i).polarityDark().apertureCircle(diameter).flash(x, y);
+                    copperLayer(i).polarityDark().apertureCircle(diameter).net(net).flash(x, y).net(null);
                 }
             });
 
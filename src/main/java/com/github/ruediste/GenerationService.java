@@ -0,0 +1,324 @@
+package com.github.ruediste;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.URLDecoder;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+/**
+ * Long running local HTTP service generating panels, avoiding the JVM startup
+ * and warm-up for each run.
+ *
+ * <p>
+ * {@code GET /generate?outerGaps=0.2,0.3&innerGaps=0.15&padGaps=0.3&raster=2.54&boardSize=4&soldermaskExpansion=0.038&append=false}
+ * returns a zip file with all layers. With {@code append=true} the layers are
+ * appended to the base files of the working directory, otherwise they are
+ * standalone and the zip contains the netlist as well. Omitted parameters use
+ * the defaults of {@link App}.
+ * Identical concurrent requests are merged into a single generation, recent
+ * results are kept in an LRU cache bounded by the total size of the zip files.
+ *
+ * <p>
+ * {@code GET /statistics} with the same parameters returns the statistics of
+ * each layer file as text, using a dry run. Useful to check fab limits while
+ * sweeping configurations.
+ */
+public class GenerationService {
+
+    public static void main(String[] args) throws IOException {
+        int port = args.length > 0 ? Integer.parseInt(args[0]) : 8080;
+        long cacheBytes = args.length > 1 ? Long.parseLong(args[1]) : 256L << 20;
+        new GenerationService(cacheBytes).start(port);
+    }
+
+    /**
+     * Parameters of a panel. Used as key to merge requests and to cache results.
+     */
+    public record PanelParameters(double raster, double soldermaskExpansion, int boardSize,
+            List<Double> outerGaps, List<Double> innerGaps, List<Double> padGaps, boolean append) {
+
+        // limits keeping a single request from exhausting the service
+        static final double MIN_RASTER = 1;
+        static final double MAX_RASTER = 10;
+        static final int MAX_BOARD_SIZE = 50;
+        static final int MAX_GAPS = 8;
+        static final int MAX_CELLS = 10_000;
+
+        public static PanelParameters defaults() {
+            var app = new App();
+            return new PanelParameters(app.raster, app.soldermaskExpansion, app.boardSize, app.outerGaps,
+                    app.innerGaps, app.padGaps, app.append);
+        }
+
+        /**
+         * Parse the parameters from a query string, using the defaults for omitted
+         * parameters
+         */
+        public static PanelParameters parse(String query) {
+            var values = new HashMap<String, String>();
+            if (query != null)
+                for (var pair : query.split("&")) {
+                    if (pair.isEmpty())
+                        continue;
+                    int idx = pair.indexOf('=');
+                    if (idx < 0)
+                        throw new IllegalArgumentException("Missing value for parameter " + pair);
+                    values.put(URLDecoder.decode(pair.substring(0, idx), StandardCharsets.UTF_8),
+                            URLDecoder.decode(pair.substring(idx + 1), StandardCharsets.UTF_8));
+                }
+
+            var defaults = defaults();
+            var result = new PanelParameters(
+                    parseDouble(values.remove("raster"), defaults.raster),
+                    parseDouble(values.remove("soldermaskExpansion"), defaults.soldermaskExpansion),
+                    values.containsKey("boardSize") ? Integer.parseInt(values.remove("boardSize"))
+                            : defaults.boardSize,
+                    parseList(values.remove("outerGaps"), defaults.outerGaps),
+                    parseList(values.remove("innerGaps"), defaults.innerGaps),
+                    parseList(values.remove("padGaps"), defaults.padGaps),
+                    parseBoolean(values.remove("append"), defaults.append));
+            if (!values.isEmpty())
+                throw new IllegalArgumentException("Unknown parameters " + values.keySet());
+            if (result.boardSize < 2 || result.boardSize > MAX_BOARD_SIZE || !(result.raster >= MIN_RASTER)
+                    || !(result.raster <= MAX_RASTER) || !(result.soldermaskExpansion >= 0)
+                    || !validGaps(result.outerGaps, result.raster) || !validGaps(result.innerGaps, result.raster)
+                    || !validGaps(result.padGaps, result.raster))
+                throw new IllegalArgumentException("Invalid parameters " + result);
+            if ((long) result.boardSize * result.boardSize * result.outerGaps.size()
+                    * result.innerGaps.size() > MAX_CELLS)
+                throw new IllegalArgumentException("Panel exceeds " + MAX_CELLS + " cells");
+            return result;
+        }
+
+        private static boolean validGaps(List<Double> gaps, double raster) {
+            return !gaps.isEmpty() && gaps.size() <= MAX_GAPS
+                    && gaps.stream().allMatch(g -> g > 0 && g < raster);
+        }
+
+        private static double parseDouble(String value, double defaultValue) {
+            return value == null ? defaultValue : Double.parseDouble(value);
+        }
+
+        private static boolean parseBoolean(String value, boolean defaultValue) {
+            if (value == null)
+                return defaultValue;
+            if (!value.equals("true") && !value.equals("false"))
+                throw new IllegalArgumentException("Invalid boolean " + value);
+            return Boolean.parseBoolean(value);
+        }
+
+        private static List<Double> parseList(String value, List<Double> defaultValue) {
+            if (value == null)
+                return defaultValue;
+            return Arrays.stream(value.split(",")).map(Double::valueOf).toList();
+        }
+
+        void apply(App app) {
+            app.raster = raster;
+            app.soldermaskExpansion = soldermaskExpansion;
+            app.boardSize = boardSize;
+            app.outerGaps = outerGaps;
+            app.innerGaps = innerGaps;
+            app.padGaps = padGaps;
+            app.append = append;
+        }
+    }
+
+    /**
+     * Generates the zip file for the given parameters
+     */
+    interface Generator {
+        byte[] generate(PanelParameters parameters) throws Exception;
+    }
+
+    private final Map<PanelParameters, CompletableFuture<byte[]>> inFlight = new ConcurrentHashMap<>();
+    private final ByteLruCache<PanelParameters> cache;
+    private final Generator generator;
+
+    public GenerationService(long cacheBytes) {
+        this(cacheBytes, GenerationService::zip);
+    }
+
+    GenerationService(long cacheBytes, Generator generator) {
+        cache = new ByteLruCache<>(cacheBytes);
+        this.generator = generator;
+    }
+
+    public HttpServer start(int port) throws IOException {
+        var server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), port), 0);
+        server.createContext("/generate", this::handleGenerate);
+        server.createContext("/statistics", this::handleStatistics);
+        server.setExecutor(Executors.newCachedThreadPool());
+        server.start();
+        System.out.println("Listening on " + server.getAddress());
+        return server;
+    }
+
+    private void handleGenerate(HttpExchange exchange) throws IOException {
+        try (exchange) {
+            PanelParameters parameters;
+            try {
+                parameters = PanelParameters.parse(exchange.getRequestURI().getRawQuery());
+            } catch (IllegalArgumentException e) {
+                respondText(exchange, 400, e.getMessage());
+                return;
+            }
+
+            byte[] zip;
+            try {
+                zip = generate(parameters);
+            } catch (Throwable e) {
+                e.printStackTrace();
+                respondText(exchange, 500, e.getMessage());
+                return;
+            }
+            exchange.getResponseHeaders().set("Content-Disposition", "attachment; filename=\"protoboard.zip\"");
+            respond(exchange, 200, "application/zip", zip);
+        }
+    }
+
+    private void handleStatistics(HttpExchange exchange) throws IOException {
+        try (exchange) {
+            PanelParameters parameters;
+            try {
+                parameters = PanelParameters.parse(exchange.getRequestURI().getRawQuery());
+            } catch (IllegalArgumentException e) {
+                respondText(exchange, 400, e.getMessage());
+                return;
+            }
+
+            var app = new App();
+            parameters.apply(app);
+            var body = new StringBuilder();
+            try {
+                app.dryRun().forEach((fileName, statistics) -> body.append(fileName).append(": ")
+                        .append(statistics).append("\n"));
+            } catch (Throwable e) {
+                e.printStackTrace();
+                respondText(exchange, 500, e.getMessage());
+                return;
+            }
+            respondText(exchange, 200, body.toString());
+        }
+    }
+
+    private void respondText(HttpExchange exchange, int status, String message) throws IOException {
+        respond(exchange, status, "text/plain", String.valueOf(message).getBytes(StandardCharsets.UTF_8));
+    }
+
+    private void respond(HttpExchange exchange, int status, String contentType, byte[] body) throws IOException {
+        exchange.getResponseHeaders().set("Content-Type", contentType);
+        exchange.sendResponseHeaders(status, body.length);
+        exchange.getResponseBody().write(body);
+    }
+
+    /**
+     * Return the zipped layers for the given parameters, from the cache, from a
+     * running generation with the same parameters, or by generating them.
+     */
+    public byte[] generate(PanelParameters parameters) {
+        var result = cache.get(parameters);
+        if (result != null)
+            return result;
+
+        var future = new CompletableFuture<byte[]>();
+        var running = inFlight.putIfAbsent(parameters, future);
+        if (running != null) {
+            try {
+                return running.join();
+            } catch (CompletionException e) {
+                throw e.getCause() instanceof RuntimeException r ? r : e;
+            }
+        }
+
+        try {
+            // the generation might have completed between the cache lookup and
+            // registering the future
+            result = cache.get(parameters);
+            if (result == null) {
+                result = generator.generate(parameters);
+                cache.put(parameters, result);
+            }
+            future.complete(result);
+            return result;
+        } catch (Throwable e) {
+            // errors have to reach the merged requests as well, otherwise they would
+            // wait forever
+            future.completeExceptionally(e);
+            if (e instanceof Error error)
+                throw error;
+            throw e instanceof RuntimeException r ? r : new RuntimeException(e);
+        } finally {
+            inFlight.remove(parameters, future);
+        }
+    }
+
+    private static byte[] zip(PanelParameters parameters) throws Exception {
+        // the writers are open concurrently, so buffer each file before zipping
+        var files = new LinkedHashMap<String, ByteArrayOutputStream>();
+        var app = new App();
+        parameters.apply(app);
+        app.run(fileName -> {
+            var buffer = new ByteArrayOutputStream();
+            files.put(fileName, buffer);
+            return buffer;
+        });
+
+        var result = new ByteArrayOutputStream();
+        try (var zip = new ZipOutputStream(result)) {
+            for (var entry : files.entrySet()) {
+                zip.putNextEntry(new ZipEntry(entry.getKey()));
+                entry.getValue().writeTo(zip);
+                zip.closeEntry();
+            }
+        }
+        return result.toByteArray();
+    }
+
+    /**
+     * LRU cache bounded by the total number of bytes of the values
+     */
+    static class ByteLruCache<K> {
+        private final long maxBytes;
+        private long bytes;
+        private final LinkedHashMap<K, byte[]> entries = new LinkedHashMap<>(16, 0.75f, true);
+
+        ByteLruCache(long maxBytes) {
+            this.maxBytes = maxBytes;
+        }
+
+        synchronized byte[] get(K key) {
+            return entries.get(key);
+        }
+
+        synchronized void put(K key, byte[] value) {
+            if (value.length > maxBytes)
+                return;
+            var previous = entries.put(key, value);
+            if (previous != null)
+                bytes -= previous.length;
+            bytes += value.length;
+            var it = entries.values().iterator();
+            while (bytes > maxBytes) {
+                bytes -= it.next().length;
+                it.remove();
+            }
+        }
+    }
+}
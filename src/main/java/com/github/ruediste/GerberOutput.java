@@ -0,0 +1,29 @@
+package com.github.ruediste;
+
+import java.io.IOException;
+
+/**
+ * Receives the commands written by a {@link GerberWriter}. The frequent
+ * commands have their own methods, so they can be passed on without
+ * formatting.
+ */
+interface GerberOutput extends AutoCloseable {
+
+    /**
+     * Write a complete line, without the line terminator
+     */
+    void text(String line);
+
+    void polarity(boolean dark);
+
+    void aperture(int nr);
+
+    /**
+     * Write an operation (1: interpolate, 2: move, 3: flash). Coordinates are in
+     * nanometers.
+     */
+    void operation(int code, int x, int y);
+
+    @Override
+    void close() throws IOException;
+}
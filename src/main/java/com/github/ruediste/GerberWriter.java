@@ -10,26 +10,88 @@ import java.io.IOException;
 import java.io.OutputStream;
 import java.io.PrintStream;
 import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.List;
+import java.util.Objects;
 import java.util.UUID;
 
 public class GerberWriter implements AutoCloseable {
 
-    private PrintStream out;
+    private GerberOutput output;
     private int nextApertureNr = 10;
 
     private HashMap<List<Object>, Aperture> apertureCache = new HashMap<>();
     private boolean currentPolarityIsDark;
 
+    // State of the output. Objects are written lazily, thus the state requested
+    // by the caller is tracked separately. Null if unknown.
+    private Boolean emittedPolarityIsDark;
+    private Aperture emittedAperture;
+    private boolean emittedPointValid;
+    private double emittedX;
+    private double emittedY;
+
+    private ObjectSorter sorter;
+    private boolean inContour;
+    private boolean inBlock;
+
+    /**
+     * Receives the geometry of all objects emitted by a writer, in drawing order
+     */
+    public interface GeometryListener {
+        void flash(Aperture aperture, double x, double y, boolean dark);
+
+        void draw(Aperture aperture, double x1, double y1, double x2, double y2, boolean dark);
+
+        void region(List<Vector> contour, boolean dark);
+    }
+
+    private GeometryListener geometryListener;
+    private double currentX;
+    private double currentY;
+    private List<Vector> currentContour;
+
+    private String net;
+    private String emittedNet;
+
     public GerberWriter(UUID ident, String outputFile) throws FileNotFoundException {
-        this.out = new PrintStream(new FileOutputStream(outputFile, false), true, StandardCharsets.UTF_8);
-        this.out.println("%TF.SameCoordinates," + ident + "*%");
+        this(ident, new FileOutputStream(outputFile, false));
+    }
+
+    public GerberWriter(UUID ident, OutputStream out) {
+        this.output = new TextOutput(new PrintStream(out, true, StandardCharsets.UTF_8));
+        this.output.text("%TF.SameCoordinates," + ident + "*%");
     }
 
     public GerberWriter(UUID ident, String outputFile, String baseFile) throws IOException {
-        this.out = new PrintStream(new FileOutputStream(outputFile, false), true, StandardCharsets.UTF_8);
+        this(ident, new FileOutputStream(outputFile, false), baseFile);
+    }
 
+    public GerberWriter(UUID ident, OutputStream out, String baseFile) throws IOException {
+        this.output = new TextOutput(new PrintStream(out, true, StandardCharsets.UTF_8));
+        copyBaseFile(baseFile);
+    }
+
+    /**
+     * Create a writer which only counts the commands it would write. Used for dry
+     * runs.
+     */
+    public GerberWriter(UUID ident, LayerStatistics statistics) {
+        this.output = new CountingOutput(statistics);
+        this.output.text("%TF.SameCoordinates," + ident + "*%");
+    }
+
+    /**
+     * Create a writer which only counts the commands it would write, including
+     * the copied base file. Used for dry runs.
+     */
+    public GerberWriter(UUID ident, LayerStatistics statistics, String baseFile) throws IOException {
+        this.output = new CountingOutput(statistics);
+        copyBaseFile(baseFile);
+    }
+
+    private void copyBaseFile(String baseFile) throws IOException {
         // Set aperture to a high number. Hacky, but avoids the need to parse the file.
         nextApertureNr = 1000;
 
@@ -39,47 +101,293 @@ public class GerberWriter implements AutoCloseable {
                 var line = reader.readLine();
                 if (line == null || line.equals("M02*"))
                     break;
-                out.println(line);
+                this.output.text(line);
             }
         }
     }
 
+    /**
+     * Formats the commands to the Gerber text format
+     */
+    private static class TextOutput implements GerberOutput {
+        private final PrintStream out;
+
+        TextOutput(PrintStream out) {
+            this.out = out;
+        }
+
+        @Override
+        public void text(String line) {
+            out.println(line);
+        }
+
+        @Override
+        public void polarity(boolean dark) {
+            out.println(dark ? "%LPD*%" : "%LPC*%");
+        }
+
+        @Override
+        public void aperture(int nr) {
+            out.printf("D%d*\n", nr);
+        }
+
+        @Override
+        public void operation(int code, int x, int y) {
+            out.printf("X%sY%sD0%d*\n", formatCoordinate(x), formatCoordinate(y), code);
+        }
+
+        private String formatCoordinate(int value) {
+            return String.format("%09d", value);
+        }
+
+        @Override
+        public void close() throws IOException {
+            out.close();
+            if (out.checkError())
+                throw new IOException("Error while writing gerber output");
+        }
+    }
+
+    /**
+     * Counts the commands and the exact number of bytes {@link TextOutput} would
+     * write, without formatting
+     */
+    private static class CountingOutput implements GerberOutput {
+        private static final int LINE_SEPARATOR_LENGTH = System.lineSeparator().length();
+
+        private final LayerStatistics statistics;
+        private boolean inRegion;
+
+        CountingOutput(LayerStatistics statistics) {
+            this.statistics = statistics;
+        }
+
+        @Override
+        public void text(String line) {
+            statistics.commands++;
+            statistics.bytes += utf8Length(line) + LINE_SEPARATOR_LENGTH;
+
+            // lines copied from a base file may contain any command
+            if (line.startsWith("%ADD"))
+                statistics.apertures++;
+            else if (line.startsWith("%ABD")) {
+                statistics.apertures++;
+                statistics.blockApertures++;
+            } else if (line.startsWith("%LP"))
+                statistics.polarityLevels++;
+            else if (line.startsWith("G36")) {
+                statistics.regions++;
+                inRegion = true;
+            } else if (line.startsWith("G37"))
+                inRegion = false;
+            else if (line.endsWith("D03*"))
+                statistics.flashes++;
+            else if (line.endsWith("D01*") && !inRegion)
+                statistics.draws++;
+        }
+
+        private static int utf8Length(String line) {
+            for (int i = 0; i < line.length(); i++)
+                if (line.charAt(i) >= 0x80)
+                    return line.getBytes(StandardCharsets.UTF_8).length;
+            return line.length();
+        }
+
+        @Override
+        public void polarity(boolean dark) {
+            statistics.commands++;
+            statistics.bytes += "%LPD*%".length() + LINE_SEPARATOR_LENGTH;
+            statistics.polarityLevels++;
+        }
+
+        @Override
+        public void aperture(int nr) {
+            statistics.commands++;
+            statistics.bytes += 1 + digits(nr) + 2;
+        }
+
+        @Override
+        public void operation(int code, int x, int y) {
+            statistics.commands++;
+            // X%09dY%09dD0%d*\n
+            statistics.bytes += 1 + coordinateLength(x) + 1 + coordinateLength(y) + 5;
+            if (code == 3)
+                statistics.flashes++;
+            else if (code == 1 && !inRegion)
+                statistics.draws++;
+        }
+
+        private static int coordinateLength(int value) {
+            long abs = Math.abs((long) value);
+            return Math.max(9, (value < 0 ? 1 : 0) + digits(abs));
+        }
+
+        private static int digits(long value) {
+            int result = 1;
+            while (value >= 10) {
+                value /= 10;
+                result++;
+            }
+            return result;
+        }
+
+        @Override
+        public void close() {
+        }
+    }
+
+    /**
+     * Switch to pipelined mode: the commands are encoded to a ring buffer and
+     * formatted and written by a separate thread, overlapping the geometry
+     * generation with the output. Exceptions of the output thread are rethrown
+     * by the following commands or by {@link #close()}.
+     */
+    public GerberWriter pipelined() {
+        return pipelined(1 << 16, 16);
+    }
+
+    /**
+     * @param chunkSize  size of each buffer of the ring
+     * @param chunkCount number of buffers. When all buffers are waiting to be
+     *                   written, the writer blocks.
+     */
+    public GerberWriter pipelined(int chunkSize, int chunkCount) {
+        if (!(output instanceof PipelinedOutput))
+            output = new PipelinedOutput(output, chunkSize, chunkCount);
+        return this;
+    }
+
     public void fileAttributesFinished() {
-        this.out.println("%FSLAX46Y46*%"); // format of coordinates
-        this.out.println("%MOMM*%"); // metric millimeters
-        currentPolarityIsDark = false;
+        this.output.text("%FSLAX46Y46*%"); // format of coordinates
+        this.output.text("%MOMM*%"); // metric millimeters
+        emittedPolarityIsDark = null;
         this.polarityDark();
     }
 
     @Override
     public void close() throws Exception {
-        out.println("M02*");// end of file
-        out.close();
+        // the output has to be closed even if writing failed, to stop the thread
+        // of a pipelined output
+        try (var out = output) {
+            flushSorted();
+            out.text("M02*");// end of file
+        }
     }
 
     public GerberWriter polarityDark() {
-        if (!currentPolarityIsDark) {
-            out.println("%LPD*%");
-            currentPolarityIsDark = true;
-        }
+        currentPolarityIsDark = true;
         return this;
     }
 
     public GerberWriter polarityClear() {
-        if (currentPolarityIsDark) {
-            out.println("%LPC*%");
-            currentPolarityIsDark = false;
+        currentPolarityIsDark = false;
+        return this;
+    }
+
+    /**
+     * Enable or disable sorting of the objects. When enabled, the flashes and
+     * draws of each polarity level are grouped by aperture and ordered along a
+     * Hilbert curve, which reduces aperture changes and travel. Regions and
+     * rotation changes are written in order.
+     */
+    public GerberWriter sortObjects(boolean enabled) {
+        if (enabled) {
+            if (sorter == null)
+                sorter = new ObjectSorter();
+        } else {
+            flushSorted();
+            sorter = null;
+        }
+        return this;
+    }
+
+    private void flushSorted() {
+        if (sorter != null)
+            sorter.flush(this::emitObject);
+    }
+
+    private void object(boolean draw, double x1, double y1, double x2, double y2) {
+        if (sorter != null && !inBlock) {
+            if (!sorter.add(currentPolarityIsDark, currentAperture, net, draw, x1, y1, x2, y2)) {
+                flushSorted();
+                sorter.add(currentPolarityIsDark, currentAperture, net, draw, x1, y1, x2, y2);
+            }
+        } else
+            emitObject(currentPolarityIsDark, currentAperture, net, draw, x1, y1, x2, y2);
+    }
+
+    private void emitObject(boolean dark, Aperture aperture, String net, boolean draw, double x1, double y1,
+            double x2, double y2) {
+        emitPolarity(dark);
+        if (aperture != null && aperture != emittedAperture) {
+            output.aperture(aperture.nr);
+            emittedAperture = aperture;
+        }
+        objectAttributes(net);
+        if (draw) {
+            if (!emittedPointValid || emittedX != x1 || emittedY != y1)
+                output.operation(2, coordinate(x1), coordinate(y1));
+            output.operation(1, coordinate(x2), coordinate(y2));
+        } else
+            output.operation(3, coordinate(x2), coordinate(y2));
+        emittedPointValid = true;
+        emittedX = x2;
+        emittedY = y2;
+    }
+
+    private void emitPolarity(boolean dark) {
+        if (emittedPolarityIsDark == null || emittedPolarityIsDark != dark) {
+            output.polarity(dark);
+            emittedPolarityIsDark = dark;
         }
+    }
+
+    public GerberWriter geometryListener(GeometryListener geometryListener) {
+        this.geometryListener = geometryListener;
+        return this;
+    }
+
+    /**
+     * Set the net (X2 attribute .N) of the following objects. Pass null to remove
+     * the net.
+     */
+    public GerberWriter net(String net) {
+        this.net = net;
         return this;
     }
 
+    private void objectAttributes(String net) {
+        if (!Objects.equals(net, emittedNet)) {
+            if (net == null)
+                output.text("%TD.N*%");
+            else
+                output.text("%TO.N," + net + "*%");
+            emittedNet = net;
+        }
+    }
+
     public GerberWriter contour(Runnable r) {
-        out.println("G36*");
+        if (!inBlock)
+            flushSorted();
+        emitPolarity(currentPolarityIsDark);
+        objectAttributes(net);
+        output.text("G36*");
+        inContour = true;
+        if (geometryListener != null)
+            currentContour = new ArrayList<>();
         r.run();
-        out.println("G37*");
+        emitContour();
+        currentContour = null;
+        inContour = false;
+        output.text("G37*");
         return this;
     }
 
+    private void emitContour() {
+        if (currentContour != null && currentContour.size() > 2)
+            geometryListener.region(currentContour, currentPolarityIsDark);
+    }
+
     public record ApertureArgs(String function) {
     }
 
@@ -88,7 +396,7 @@ public class GerberWriter implements AutoCloseable {
             return;
 
         if (args.function != null) {
-            out.printf("%%TA.AperFunction,%s*%%\n", args.function);
+            output.text(String.format("%%TA.AperFunction,%s*%%", args.function));
         }
     }
 
@@ -99,9 +407,10 @@ public class GerberWriter implements AutoCloseable {
     public GerberWriter apertureCircle(double diameter, ApertureArgs args) {
         return setCurrentAperture(apertureCache.computeIfAbsent(List.of("circle", diameter, args), k -> {
             handleApertureArgs(args);
-            out.printf("%%ADD%dC,%f*%%\n", nextApertureNr, diameter);
-            out.println("%TD*%");
-            return new Aperture(nextApertureNr++);
+            output.text(String.format("%%ADD%dC,%f*%%", nextApertureNr, diameter));
+            output.text("%TD*%");
+            emittedNet = null;
+            return new Aperture(nextApertureNr++, ApertureType.CIRCLE, diameter, diameter);
         }));
     }
 
@@ -112,34 +421,116 @@ public class GerberWriter implements AutoCloseable {
     public GerberWriter apertureRectangle(double xSize, double ySize, ApertureArgs args) {
         return setCurrentAperture(apertureCache.computeIfAbsent(List.of("rectangle", xSize, ySize, args), k -> {
             handleApertureArgs(args);
-            out.printf("%%ADD%dR,%fX%f*%%\n", nextApertureNr, xSize, ySize);
-            return new Aperture(nextApertureNr++);
+            output.text(String.format("%%ADD%dR,%fX%f*%%", nextApertureNr, xSize, ySize));
+            return new Aperture(nextApertureNr++, ApertureType.RECTANGLE, xSize, ySize);
         }));
     }
 
+    private boolean blockPolarityIsDark;
+    private Aperture blockAperture;
+    private GeometryListener blockGeometryListener;
+
+    /**
+     * Start the definition of a block aperture. Coordinates within the block are
+     * relative to the flash position, thus no geometry is reported to the
+     * {@link GeometryListener}. Polarity and current aperture are restored by
+     * {@link #endBlockAperture()}.
+     */
     public Aperture startBlockAperture() {
         var result = new Aperture(nextApertureNr++);
-        out.printf("%%ABD%d*%%\n", result.nr);
+        output.text(String.format("%%ABD%d*%%", result.nr));
+        inBlock = true;
+        blockPolarityIsDark = currentPolarityIsDark;
+        blockAperture = currentAperture;
+        blockGeometryListener = geometryListener;
+        geometryListener = null;
+        currentAperture = null;
+        currentPolarityIsDark = true;
+        resetEmittedState();
         return result;
     }
 
     public GerberWriter endBlockAperture() {
-        out.println("%AB*%");
+        output.text("%AB*%");
+        inBlock = false;
+        geometryListener = blockGeometryListener;
+        blockGeometryListener = null;
+        currentAperture = blockAperture;
+        currentPolarityIsDark = blockPolarityIsDark;
+        resetEmittedState();
         return this;
     }
 
-    private Integer currentApertureNr;
+    private void resetEmittedState() {
+        emittedPolarityIsDark = null;
+        emittedAperture = null;
+        emittedPointValid = false;
+    }
+
+    /**
+     * Draw a text using the {@link StrokeFont}, centered at the given position.
+     * Each glyph is defined once as block aperture and flashed for every
+     * occurrence.
+     *
+     * @param height   height of the capital letters
+     * @param mirrored mirror the text along the y axis, for bottom layers
+     */
+    public GerberWriter text(String text, double x, double y, double height, double strokeWidth,
+            boolean mirrored) {
+        double scale = height / StrokeFont.HEIGHT;
+        double direction = mirrored ? -1 : 1;
+        double start = x - direction * StrokeFont.width(text) * scale / 2;
+        for (int i = 0; i < text.length(); i++) {
+            var strokes = StrokeFont.strokes(text.charAt(i));
+            if (strokes.isEmpty())
+                continue;
+            var glyph = glyphAperture(strokes, height, strokeWidth, mirrored);
+            setCurrentAperture(glyph);
+            flash(start + direction * (i * StrokeFont.ADVANCE + StrokeFont.WIDTH / 2.) * scale, y);
+        }
+        return this;
+    }
 
-    public GerberWriter setCurrentAperture(Aperture aperture) {
-        if (currentApertureNr == null || currentApertureNr != aperture.nr) {
-            out.printf("D%d*\n", aperture.nr);
-            currentApertureNr = aperture.nr;
+    private Aperture glyphAperture(List<List<Vector>> strokes, double height, double strokeWidth,
+            boolean mirrored) {
+        var key = List.<Object>of("glyph", strokes, height, strokeWidth, mirrored);
+        var result = apertureCache.get(key);
+        if (result == null) {
+            double scale = height / StrokeFont.HEIGHT;
+            double direction = mirrored ? -1 : 1;
+
+            // define the stroke aperture outside of the block
+            var stroke = apertureCircle(strokeWidth).currentAperture;
+            result = startBlockAperture();
+            setCurrentAperture(stroke);
+            linearInterpolation();
+            for (var polyline : strokes) {
+                for (int i = 0; i < polyline.size(); i++) {
+                    var p = polyline.get(i);
+                    // origin of the block is in the center of the glyph
+                    double px = direction * (p.x - StrokeFont.WIDTH / 2.) * scale;
+                    double py = (p.y - StrokeFont.HEIGHT / 2.) * scale;
+                    if (i == 0)
+                        move(px, py);
+                    else
+                        interpolate(px, py);
+                }
+            }
+            endBlockAperture();
+            apertureCache.put(key, result);
         }
+        return result;
+    }
+
+    private Aperture currentAperture;
+
+    public GerberWriter setCurrentAperture(Aperture aperture) {
+        currentAperture = aperture;
         return this;
     }
 
-    private String formatCoordinate(double value) {
-        return String.format("%09d", (int) (value * 1e6));
+    private int coordinate(double value) {
+        return (int) (value * 1e6);
     }
 
     public GerberWriter move(Vector v) {
@@ -147,12 +538,25 @@ public class GerberWriter implements AutoCloseable {
     }
 
     public GerberWriter move(double x, double y) {
-        out.printf("X%sY%sD02*\n", formatCoordinate(x), formatCoordinate(y));
+        if (inContour) {
+            output.operation(2, coordinate(x), coordinate(y));
+            emittedPointValid = true;
+            emittedX = x;
+            emittedY = y;
+        }
+        if (currentContour != null) {
+            // a move within a contour starts a new region
+            emitContour();
+            currentContour = new ArrayList<>();
+            currentContour.add(vector(x, y));
+        }
+        currentX = x;
+        currentY = y;
         return this;
     }
 
     public GerberWriter linearInterpolation() {
-        out.println("G01*");
+        output.text("G01*");
         return this;
     }
 
@@ -167,27 +571,27 @@ public class GerberWriter implements AutoCloseable {
     }
 
     public GerberWriter attrFileFunctionCopper(int layer, CopperLayerType type) {
-        out.printf("%%TF.FileFunction,Copper,L%d,%s*%%\n", layer, type.value);
+        output.text(String.format("%%TF.FileFunction,Copper,L%d,%s*%%", layer, type.value));
         return this;
     }
 
     public GerberWriter attrFileFunctionPlated(int from, int to) {
-        out.printf("%%TF.FileFunction,Plated,%d,%d,PTH,Drill*%%\n", from, to);
+        output.text(String.format("%%TF.FileFunction,Plated,%d,%d,PTH,Drill*%%", from, to));
         return this;
     }
 
     public GerberWriter attrFileFunctionSoldermask(boolean top) {
-        out.printf("%%TF.FileFunction,Soldermask,%s*%%\n", top ? "Top" : "Bot");
+        output.text(String.format("%%TF.FileFunction,Soldermask,%s*%%", top ? "Top" : "Bot"));
         return this;
     }
 
     public GerberWriter attrFileFunctionLegend(boolean top) {
-        out.printf("%%TF.FileFunction,Legend,%s*%%\n", top ? "Top" : "Bot");
+        output.text(String.format("%%TF.FileFunction,Legend,%s*%%", top ? "Top" : "Bot"));
         return this;
     }
 
     public GerberWriter attrFilePolarity(boolean positive) {
-        out.printf("%%TF.FilePolarity,%s*%%\n", positive ? "Positive" : "Negative");
+        output.text(String.format("%%TF.FilePolarity,%s*%%", positive ? "Positive" : "Negative"));
         return this;
     }
 
@@ -206,25 +610,58 @@ public class GerberWriter implements AutoCloseable {
     }
 
     public GerberWriter interpolate(double x, double y) {
-        out.printf("X%sY%sD01*\n", formatCoordinate(x), formatCoordinate(y));
+        if (inContour) {
+            output.operation(1, coordinate(x), coordinate(y));
+            emittedPointValid = true;
+            emittedX = x;
+            emittedY = y;
+            if (currentContour != null)
+                currentContour.add(vector(x, y));
+        } else {
+            if (geometryListener != null)
+                geometryListener.draw(currentAperture, currentX, currentY, x, y, currentPolarityIsDark);
+            object(true, currentX, currentY, x, y);
+        }
+        currentX = x;
+        currentY = y;
         return this;
     }
 
+    public enum ApertureType {
+        CIRCLE, RECTANGLE, BLOCK
+    }
+
     public static class Aperture {
         public int nr;
+        public ApertureType type;
+        public double xSize;
+        public double ySize;
 
         public Aperture(int nr) {
+            this(nr, ApertureType.BLOCK, 0, 0);
+        }
+
+        public Aperture(int nr, ApertureType type, double xSize, double ySize) {
             this.nr = nr;
+            this.type = type;
+            this.xSize = xSize;
+            this.ySize = ySize;
         }
     }
 
     public GerberWriter flash(double x, double y) {
-        out.printf("X%sY%sD03*\n", formatCoordinate(x), formatCoordinate(y));
+        if (geometryListener != null)
+            geometryListener.flash(currentAperture, x, y, currentPolarityIsDark);
+        object(false, x, y, x, y);
+        currentX = x;
+        currentY = y;
         return this;
     }
 
     public GerberWriter loadRotation(double angle) {
-        out.printf("%%LR%.1f*%%\n", angle);
+        if (!inBlock)
+            flushSorted();
+        output.text(String.format("%%LR%.1f*%%", angle));
         return this;
     }
 
@@ -0,0 +1,70 @@
+package com.github.ruediste;
+
+/**
+ * Statistics of a single gerber file, collected by a counting
+ * {@link GerberWriter} without formatting or writing the file.
+ */
+public class LayerStatistics {
+    long bytes;
+    long commands;
+    long apertures;
+    long blockApertures;
+    long flashes;
+    long draws;
+    long regions;
+    long polarityLevels;
+
+    /**
+     * Size of the file in bytes
+     */
+    public long bytes() {
+        return bytes;
+    }
+
+    /**
+     * Number of lines of the file
+     */
+    public long commands() {
+        return commands;
+    }
+
+    /**
+     * Number of aperture definitions, including block apertures
+     */
+    public long apertures() {
+        return apertures;
+    }
+
+    public long blockApertures() {
+        return blockApertures;
+    }
+
+    public long flashes() {
+        return flashes;
+    }
+
+    /**
+     * Number of interpolations outside of regions
+     */
+    public long draws() {
+        return draws;
+    }
+
+    public long regions() {
+        return regions;
+    }
+
+    /**
+     * Number of load polarity commands. Each starts a new polarity level.
+     */
+    public long polarityLevels() {
+        return polarityLevels;
+    }
+
+    @Override
+    public String toString() {
+        return String.format(
+                "%d bytes, %d commands, %d apertures (%d block), %d flashes, %d draws, %d regions, %d polarity levels",
+                bytes, commands, apertures, blockApertures, flashes, draws, regions, polarityLevels);
+    }
+}
@@ -0,0 +1,114 @@
+package com.github.ruediste;
+
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Result of the {@link NetlistExtractor}: the net of each test point.
+ */
+public class Netlist {
+
+    /**
+     * A pad or via included in the netlist.
+     *
+     * @param layer    copper layer of a surface mount pad, or
+     *                 {@link #THROUGH_HOLE} for plated holes
+     * @param holeSize diameter of the hole, 0 for surface mount pads
+     * @param masked   true if the pad is covered by solder mask
+     */
+    public record TestPoint(int layer, double x, double y, double xSize, double ySize, double holeSize,
+            boolean masked) {
+        public static final int THROUGH_HOLE = -1;
+    }
+
+    private record Key(int layer, long x, long y) {
+        Key(int layer, double x, double y) {
+            this(layer, Math.round(x * 1e6), Math.round(y * 1e6));
+        }
+    }
+
+    private final List<TestPoint> testPoints;
+    private final List<String> nets;
+    private final Map<Key, String> netByKey = new HashMap<>();
+
+    /**
+     * @param nets net name of each test point, null if the test point is not on
+     *             copper
+     */
+    public Netlist(List<TestPoint> testPoints, List<String> nets) {
+        this.testPoints = testPoints;
+        this.nets = nets;
+        for (int i = 0; i < testPoints.size(); i++) {
+            var tp = testPoints.get(i);
+            netByKey.put(new Key(tp.layer(), tp.x(), tp.y()), nets.get(i));
+        }
+    }
+
+    /**
+     * Return the net of the test point registered at the given location, or null
+     * if there is none.
+     */
+    public String net(int layer, double x, double y) {
+        return netByKey.get(new Key(layer, x, y));
+    }
+
+    /**
+     * Write the netlist in the IPC-D-356A format, in metric units.
+     */
+    public void writeIpcD356(String outputFile, int layerCount) throws IOException {
+        writeIpcD356(new FileOutputStream(outputFile, false), layerCount);
+    }
+
+    /**
+     * Write the netlist in the IPC-D-356A format, in metric units. The stream is
+     * closed afterwards.
+     */
+    public void writeIpcD356(OutputStream output, int layerCount) {
+        try (var out = new PrintStream(output, false, StandardCharsets.US_ASCII)) {
+            out.println("C  IPC-D-356A netlist generated by proto-board");
+            out.println("P  UNITS CUST 1");
+            out.println("P  VER   IPC-D-356A");
+            out.println("P  IMAGE PRIMARY");
+            for (int i = 0; i < testPoints.size(); i++) {
+                var tp = testPoints.get(i);
+                var net = nets.get(i) == null ? "N/C" : nets.get(i);
+                boolean through = tp.layer() == TestPoint.THROUGH_HOLE;
+
+                // fixed columns: operation, net, reference designator, pin, mid point,
+                // drill, access, position, size, rotation, solder mask
+                out.printf("%s%-14.14s   %-6.6s-%-4.4s%c%-6.6sA%02dX%+07dY%+07dX%04dY%04dR000 S%d\n",
+                        through ? "317" : "327",
+                        net,
+                        through ? "VIA" : "PAD",
+                        "",
+                        through ? 'M' : ' ',
+                        through ? String.format("D%04dP", toMicrons(tp.holeSize())) : "",
+                        through ? 0 : tp.layer() + 1,
+                        toMicrons(tp.x()),
+                        toMicrons(tp.y()),
+                        toMicrons(tp.xSize()),
+                        toMicrons(tp.ySize()),
+                        solderMask(tp, layerCount));
+            }
+            out.println("999");
+        }
+    }
+
+    private int solderMask(TestPoint tp, int layerCount) {
+        if (!tp.masked())
+            return 0;
+        if (tp.layer() == TestPoint.THROUGH_HOLE)
+            return 3;
+        return tp.layer() == layerCount - 1 ? 2 : 1;
+    }
+
+    private long toMicrons(double value) {
+        return Math.round(value * 1000);
+    }
+}
@@ -0,0 +1,572 @@
+package com.github.ruediste;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.function.Consumer;
+import java.util.function.IntConsumer;
+
+import com.github.ruediste.GerberWriter.Aperture;
+import com.github.ruediste.GerberWriter.ApertureType;
+import com.github.ruediste.GerberWriter.GeometryListener;
+import com.github.ruediste.Netlist.TestPoint;
+
+/**
+ * Extracts the nets of a board from the geometry emitted to the copper and
+ * drill {@link GerberWriter}s.
+ *
+ * <p>
+ * Each copper layer is rasterized row by row, applying dark and clear objects
+ * in drawing order. The rows are split into bands, each band knowing the
+ * objects overlapping it. Copper runs of adjacent rows are merged with a
+ * union-find, plated holes merge the runs they hit on every layer. Only the
+ * previous row is kept. The union-find is compacted regularly, keeping only the
+ * sets referenced by the previous row and by the tallies, so the memory is
+ * dominated by the recorded geometry.
+ */
+public class NetlistExtractor {
+
+    private static final int BAND_ROWS = 64;
+    private static final int MIN_COMPACT_THRESHOLD = 1 << 16;
+
+    private final double resolution;
+    private final List<List<Shape>> copperLayers = new ArrayList<>();
+    private final List<Vector> drills = new ArrayList<>();
+    private final List<TestPoint> testPoints = new ArrayList<>();
+
+    /**
+     * @param resolution size of a raster cell in millimeters. Has to be well
+     *                   below the smallest gap on the board
+     */
+    public NetlistExtractor(double resolution) {
+        this.resolution = resolution;
+    }
+
+    public GeometryListener copperLayer(int layer) {
+        while (copperLayers.size() <= layer)
+            copperLayers.add(new ArrayList<>());
+        var shapes = copperLayers.get(layer);
+        return new GeometryListener() {
+
+            @Override
+            public void flash(Aperture aperture, double x, double y, boolean dark) {
+                if (aperture.type == ApertureType.CIRCLE)
+                    shapes.add(new Capsule(x, y, x, y, aperture.xSize / 2, dark));
+                else if (aperture.type == ApertureType.RECTANGLE)
+                    shapes.add(new Polygon(new double[] { x - aperture.xSize / 2, x + aperture.xSize / 2,
+                            x + aperture.xSize / 2, x - aperture.xSize / 2 },
+                            new double[] { y - aperture.ySize / 2, y - aperture.ySize / 2,
+                                    y + aperture.ySize / 2, y + aperture.ySize / 2 },
+                            dark));
+            }
+
+            @Override
+            public void draw(Aperture aperture, double x1, double y1, double x2, double y2, boolean dark) {
+                if (aperture.type != ApertureType.BLOCK)
+                    shapes.add(new Capsule(x1, y1, x2, y2, Math.min(aperture.xSize, aperture.ySize) / 2, dark));
+            }
+
+            @Override
+            public void region(List<Vector> contour, boolean dark) {
+                shapes.add(new Polygon(contour.stream().mapToDouble(v -> v.x).toArray(),
+                        contour.stream().mapToDouble(v -> v.y).toArray(), dark));
+            }
+        };
+    }
+
+    /**
+     * Listener for the plated drill layer. Every flash is a hole connecting all
+     * copper layers.
+     */
+    public GeometryListener drillLayer() {
+        return new GeometryListener() {
+
+            @Override
+            public void flash(Aperture aperture, double x, double y, boolean dark) {
+                if (dark)
+                    drills.add(Vector.vector(x, y));
+            }
+
+            @Override
+            public void draw(Aperture aperture, double x1, double y1, double x2, double y2, boolean dark) {
+            }
+
+            @Override
+            public void region(List<Vector> contour, boolean dark) {
+            }
+        };
+    }
+
+    /**
+     * Register a point which is to be included in the netlist. The net of a
+     * surface mount pad is the net covering most of its area, the net of a plated
+     * hole the copper at its center.
+     */
+    public void testPoint(TestPoint testPoint) {
+        testPoints.add(testPoint);
+    }
+
+    /**
+     * Request to tally the copper within a rectangle of raster cells
+     */
+    private record Query(int fromRow, int toRow, int fromColumn, int toColumn, int slot) {
+    }
+
+    public Netlist extract() {
+        // determine the raster
+        double minX = Double.POSITIVE_INFINITY, minY = Double.POSITIVE_INFINITY;
+        double maxX = Double.NEGATIVE_INFINITY, maxY = Double.NEGATIVE_INFINITY;
+        for (var shapes : copperLayers)
+            for (var shape : shapes) {
+                minX = Math.min(minX, shape.minX);
+                minY = Math.min(minY, shape.minY);
+                maxX = Math.max(maxX, shape.maxX);
+                maxY = Math.max(maxY, shape.maxY);
+            }
+        if (minX > maxX)
+            return new Netlist(testPoints, testPoints.stream().map(x -> (String) null).toList());
+        double originX = minX - resolution;
+        double originY = minY - resolution;
+        int width = (int) Math.ceil((maxX - originX) / resolution) + 2;
+        int height = (int) Math.ceil((maxY - originY) / resolution) + 2;
+
+        // one tally per test point and per drill, counting the copper found
+        var uf = new UnionFind();
+        var tallies = new ArrayList<Tally>();
+        for (int i = 0; i < testPoints.size() + drills.size(); i++)
+            tallies.add(new Tally(uf));
+
+        for (int layer = 0; layer < copperLayers.size(); layer++) {
+            var queries = new ArrayList<Query>();
+            for (int i = 0; i < testPoints.size(); i++) {
+                var tp = testPoints.get(i);
+                if (tp.layer() == TestPoint.THROUGH_HOLE)
+                    queries.add(pointQuery(tp.x(), tp.y(), originX, originY, i));
+                else if (tp.layer() == layer)
+                    queries.add(new Query(rasterIndex(tp.y() - tp.ySize() / 2, originY),
+                            rasterIndex(tp.y() + tp.ySize() / 2, originY),
+                            rasterIndex(tp.x() - tp.xSize() / 2, originX),
+                            rasterIndex(tp.x() + tp.xSize() / 2, originX), i));
+            }
+            for (int i = 0; i < drills.size(); i++) {
+                var drill = drills.get(i);
+                queries.add(pointQuery(drill.x, drill.y, originX, originY, testPoints.size() + i));
+            }
+            queries.sort((a, b) -> Integer.compare(a.fromRow, b.fromRow));
+
+            scanLayer(copperLayers.get(layer), originX, originY, width, height, uf, queries, tallies);
+        }
+
+        // holes unite the copper found on the different layers
+        for (int i = 0; i < tallies.size(); i++) {
+            if (i >= testPoints.size() || testPoints.get(i).layer() == TestPoint.THROUGH_HOLE)
+                tallies.get(i).uniteAll();
+        }
+
+        // name the nets in the order of the test points
+        var names = new ArrayList<String>();
+        var rootNames = new HashMap<Integer, String>();
+        for (int i = 0; i < testPoints.size(); i++) {
+            int label = tallies.get(i).majority();
+            if (label == -1) {
+                names.add(null);
+                continue;
+            }
+            names.add(rootNames.computeIfAbsent(uf.find(label), root -> "N" + (rootNames.size() + 1)));
+        }
+        return new Netlist(testPoints, names);
+    }
+
+    private Query pointQuery(double x, double y, double originX, double originY, int slot) {
+        int row = rasterIndex(y, originY);
+        int column = rasterIndex(x, originX);
+        return new Query(row, row, column, column, slot);
+    }
+
+    private int rasterIndex(double value, double origin) {
+        return (int) Math.floor((value - origin) / resolution);
+    }
+
+    private void scanLayer(List<Shape> shapes, double originX, double originY, int width, int height,
+            UnionFind uf, List<Query> queries, List<Tally> tallies) {
+        // sort the shapes into bands, keeping the drawing order
+        int bandCount = (height + BAND_ROWS - 1) / BAND_ROWS;
+        List<List<Shape>> bands = new ArrayList<>(bandCount);
+        for (int i = 0; i < bandCount; i++)
+            bands.add(new ArrayList<>());
+        double bandHeight = BAND_ROWS * resolution;
+        for (var shape : shapes) {
+            int first = Math.max(0, (int) ((shape.minY - originY) / bandHeight));
+            int last = Math.min(bandCount - 1, (int) ((shape.maxY - originY) / bandHeight));
+            for (int i = first; i <= last; i++)
+                bands.get(i).add(shape);
+        }
+
+        boolean[] row = new boolean[width];
+        double[] spans = new double[16];
+        var previous = new Runs();
+        var current = new Runs();
+        int queryIdx = 0;
+        var activeQueries = new ArrayList<Query>();
+        int compactThreshold = Math.max(MIN_COMPACT_THRESHOLD, 2 * uf.count());
+
+        for (int r = 0; r < height; r++) {
+            double y = originY + (r + 0.5) * resolution;
+
+            // paint the row
+            Arrays.fill(row, false);
+            for (var shape : bands.get(r / BAND_ROWS)) {
+                if (y < shape.minY || y > shape.maxY)
+                    continue;
+                if (spans.length < shape.maxSpanValues())
+                    spans = new double[shape.maxSpanValues()];
+                int count = shape.spans(y, spans);
+                for (int i = 0; i + 1 < count; i += 2) {
+                    int from = Math.max(0, (int) Math.ceil((spans[i] - originX) / resolution - 0.5));
+                    int to = Math.min(width - 1, (int) Math.floor((spans[i + 1] - originX) / resolution - 0.5));
+                    if (from <= to)
+                        Arrays.fill(row, from, to + 1, shape.dark);
+                }
+            }
+
+            // collect the runs and merge them with overlapping runs of the previous row
+            current.clear();
+            for (int x = 0; x < width;) {
+                if (!row[x]) {
+                    x++;
+                    continue;
+                }
+                int start = x;
+                while (x < width && row[x])
+                    x++;
+                current.add(start, x, uf.add());
+            }
+            for (int p = 0, c = 0; p < previous.size && c < current.size;) {
+                if (previous.start[p] < current.end[c] && current.start[c] < previous.end[p])
+                    uf.union(previous.label[p], current.label[c]);
+                if (previous.end[p] < current.end[c])
+                    p++;
+                else
+                    c++;
+            }
+
+            // tally the copper of the queries overlapping this row
+            while (queryIdx < queries.size() && queries.get(queryIdx).fromRow <= r)
+                activeQueries.add(queries.get(queryIdx++));
+            for (var query : activeQueries) {
+                var tally = tallies.get(query.slot);
+                for (int i = current.firstEndingAfter(query.fromColumn); i < current.size
+                        && current.start[i] <= query.toColumn; i++) {
+                    tally.add(current.label[i], Math.min(current.end[i], query.toColumn + 1)
+                            - Math.max(current.start[i], query.fromColumn));
+                }
+            }
+            final int currentRow = r;
+            activeQueries.removeIf(q -> q.toRow <= currentRow);
+
+            var tmp = previous;
+            previous = current;
+            current = tmp;
+
+            // drop the sets which can not be reached anymore
+            if (uf.count() > compactThreshold) {
+                var runs = previous;
+                int[] mapping = uf.compact(live -> {
+                    for (int i = 0; i < runs.size; i++)
+                        live.accept(runs.label[i]);
+                    tallies.forEach(t -> t.forEachLabel(live));
+                });
+                runs.relabel(mapping);
+                tallies.forEach(t -> t.relabel(mapping));
+                compactThreshold = Math.max(MIN_COMPACT_THRESHOLD, 2 * uf.count());
+            }
+        }
+    }
+
+    /**
+     * The runs of copper within a row
+     */
+    private static class Runs {
+        int size;
+        int[] start = new int[16];
+        int[] end = new int[16];
+        int[] label = new int[16];
+
+        void clear() {
+            size = 0;
+        }
+
+        void add(int start, int end, int label) {
+            if (size == this.start.length) {
+                this.start = Arrays.copyOf(this.start, size * 2);
+                this.end = Arrays.copyOf(this.end, size * 2);
+                this.label = Arrays.copyOf(this.label, size * 2);
+            }
+            this.start[size] = start;
+            this.end[size] = end;
+            this.label[size] = label;
+            size++;
+        }
+
+        void relabel(int[] mapping) {
+            for (int i = 0; i < size; i++)
+                label[i] = mapping[label[i]];
+        }
+
+        /**
+         * Return the index of the first run ending after x
+         */
+        int firstEndingAfter(int x) {
+            int lo = 0, hi = size;
+            while (lo < hi) {
+                int mid = (lo + hi) >>> 1;
+                if (end[mid] <= x)
+                    lo = mid + 1;
+                else
+                    hi = mid;
+            }
+            return lo;
+        }
+    }
+
+    /**
+     * Number of copper cells per net found by a query. Labels are merged while
+     * adding, so the number of entries stays small.
+     */
+    private static class Tally {
+        private final UnionFind uf;
+        private int size;
+        private int[] labels = new int[4];
+        private long[] counts = new long[4];
+
+        Tally(UnionFind uf) {
+            this.uf = uf;
+        }
+
+        void add(int label, long count) {
+            int root = uf.find(label);
+            for (int i = 0; i < size; i++) {
+                labels[i] = uf.find(labels[i]);
+                if (labels[i] == root) {
+                    counts[i] += count;
+                    return;
+                }
+            }
+            if (size == labels.length) {
+                labels = Arrays.copyOf(labels, size * 2);
+                counts = Arrays.copyOf(counts, size * 2);
+            }
+            labels[size] = root;
+            counts[size] = count;
+            size++;
+        }
+
+        void forEachLabel(IntConsumer consumer) {
+            for (int i = 0; i < size; i++)
+                consumer.accept(labels[i]);
+        }
+
+        void relabel(int[] mapping) {
+            for (int i = 0; i < size; i++)
+                labels[i] = mapping[labels[i]];
+        }
+
+        void uniteAll() {
+            for (int i = 1; i < size; i++)
+                uf.union(labels[0], labels[i]);
+        }
+
+        /**
+         * Return the label covering the most cells, or -1 if no copper was found
+         */
+        int majority() {
+            var totals = new HashMap<Integer, Long>();
+            for (int i = 0; i < size; i++)
+                totals.merge(uf.find(labels[i]), counts[i], Long::sum);
+            return totals.entrySet().stream().max((a, b) -> Long.compare(a.getValue(), b.getValue()))
+                    .map(e -> e.getKey()).orElse(-1);
+        }
+    }
+
+    private static class UnionFind {
+        private int[] parent = new int[1024];
+        private int[] size = new int[1024];
+        private int count;
+
+        int add() {
+            if (count == parent.length) {
+                parent = Arrays.copyOf(parent, count * 2);
+                size = Arrays.copyOf(size, count * 2);
+            }
+            parent[count] = count;
+            size[count] = 1;
+            return count++;
+        }
+
+        int count() {
+            return count;
+        }
+
+        /**
+         * Keep only the sets containing the live labels, renumbering them. Returns
+         * the new label of each old label, -1 for the labels of dropped sets.
+         */
+        int[] compact(Consumer<IntConsumer> liveLabels) {
+            int[] mapping = new int[count];
+            Arrays.fill(mapping, -1);
+            int[] newCount = new int[1];
+            liveLabels.accept(label -> {
+                int root = find(label);
+                if (mapping[root] == -1)
+                    mapping[root] = newCount[0]++;
+            });
+            int[] newSize = new int[Math.max(1024, newCount[0])];
+            for (int i = 0; i < count; i++) {
+                mapping[i] = mapping[find(i)];
+                if (parent[i] == i && mapping[i] != -1)
+                    newSize[mapping[i]] = size[i];
+            }
+
+            count = newCount[0];
+            size = newSize;
+            parent = new int[newSize.length];
+            for (int i = 0; i < count; i++)
+                parent[i] = i;
+            return mapping;
+        }
+
+        int find(int x) {
+            while (parent[x] != x) {
+                parent[x] = parent[parent[x]];
+                x = parent[x];
+            }
+            return x;
+        }
+
+        void union(int a, int b) {
+            a = find(a);
+            b = find(b);
+            if (a == b)
+                return;
+            if (size[a] < size[b]) {
+                var tmp = a;
+                a = b;
+                b = tmp;
+            }
+            parent[b] = a;
+            size[a] += size[b];
+        }
+    }
+
+    private static abstract class Shape {
+        final boolean dark;
+        double minX, minY, maxX, maxY;
+
+        Shape(boolean dark) {
+            this.dark = dark;
+        }
+
+        /**
+         * Write the x coordinates of the start and end of the spans covered by this
+         * shape at the given y coordinate to the target, in ascending order.
+         *
+         * @return number of values written
+         */
+        abstract int spans(double y, double[] target);
+
+        abstract int maxSpanValues();
+    }
+
+    /**
+     * A line with round ends. A circle if both ends are equal.
+     */
+    private static class Capsule extends Shape {
+        final double x1, y1, x2, y2, radius;
+        final Polygon body;
+
+        Capsule(double x1, double y1, double x2, double y2, double radius, boolean dark) {
+            super(dark);
+            this.x1 = x1;
+            this.y1 = y1;
+            this.x2 = x2;
+            this.y2 = y2;
+            this.radius = radius;
+            minX = Math.min(x1, x2) - radius;
+            maxX = Math.max(x1, x2) + radius;
+            minY = Math.min(y1, y2) - radius;
+            maxY = Math.max(y1, y2) + radius;
+
+            double length = Math.hypot(x2 - x1, y2 - y1);
+            if (length > 0) {
+                double nx = -(y2 - y1) / length * radius;
+                double ny = (x2 - x1) / length * radius;
+                body = new Polygon(new double[] { x1 + nx, x2 + nx, x2 - nx, x1 - nx },
+                        new double[] { y1 + ny, y2 + ny, y2 - ny, y1 - ny }, dark);
+            } else
+                body = null;
+        }
+
+        @Override
+        int spans(double y, double[] target) {
+            double from = Double.POSITIVE_INFINITY;
+            double to = Double.NEGATIVE_INFINITY;
+            for (int i = 0; i < 2; i++) {
+                double dy = y - (i == 0 ? y1 : y2);
+                if (Math.abs(dy) > radius)
+                    continue;
+                double cx = i == 0 ? x1 : x2;
+                double half = Math.sqrt(radius * radius - dy * dy);
+                from = Math.min(from, cx - half);
+                to = Math.max(to, cx + half);
+            }
+            if (body != null && body.spans(y, target) == 2) {
+                from = Math.min(from, target[0]);
+                to = Math.max(to, target[1]);
+            }
+            if (from > to)
+                return 0;
+            target[0] = from;
+            target[1] = to;
+            return 2;
+        }
+
+        @Override
+        int maxSpanValues() {
+            return 4;
+        }
+    }
+
+    /**
+     * A closed polygon, filled using the even-odd rule
+     */
+    private static class Polygon extends Shape {
+        final double[] xs, ys;
+
+        Polygon(double[] xs, double[] ys, boolean dark) {
+            super(dark);
+            this.xs = xs;
+            this.ys = ys;
+            minX = Arrays.stream(xs).min().getAsDouble();
+            maxX = Arrays.stream(xs).max().getAsDouble();
+            minY = Arrays.stream(ys).min().getAsDouble();
+            maxY = Arrays.stream(ys).max().getAsDouble();
+        }
+
+        @Override
+        int spans(double y, double[] target) {
+            int count = 0;
+            for (int i = 0, j = xs.length - 1; i < xs.length; j = i++) {
+                if ((ys[i] <= y) != (ys[j] <= y))
+                    target[count++] = xs[i] + (y - ys[i]) * (xs[j] - xs[i]) / (ys[j] - ys[i]);
+            }
+            Arrays.sort(target, 0, count);
+            return count;
+        }
+
+        @Override
+        int maxSpanValues() {
+            return xs.length;
+        }
+    }
+}
@@ -0,0 +1,157 @@
+package com.github.ruediste;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+
+import com.github.ruediste.GerberWriter.Aperture;
+
+/**
+ * Buffers the flashes and draws of a single polarity level and emits them
+ * grouped by aperture, each group ordered along a Hilbert curve. Objects of the
+ * same polarity level can be reordered without changing the image.
+ *
+ * <p>
+ * Objects are stored in primitive arrays and sorted using a single long key per
+ * object, holding the aperture group, the Hilbert index and the object index.
+ */
+class ObjectSorter {
+
+    interface Emitter {
+        void emit(boolean dark, Aperture aperture, String net, boolean draw, double x1, double y1, double x2,
+                double y2);
+    }
+
+    private static final int INDEX_BITS = 24;
+    private static final int HILBERT_ORDER = 15;
+    private static final int HILBERT_BITS = 2 * HILBERT_ORDER;
+    private static final int MAX_GROUPS = 1 << (63 - INDEX_BITS - HILBERT_BITS);
+    private static final int MAX_SIZE = 1 << INDEX_BITS;
+
+    private int size;
+    private boolean dark;
+
+    private double[] coordinates = new double[4 * 64];
+    private int[] groups = new int[64];
+    private int[] nets = new int[64];
+    private boolean[] draws = new boolean[64];
+    private long[] keys;
+
+    private final List<Aperture> apertures = new ArrayList<>();
+    private final HashMap<Aperture, Integer> apertureGroups = new HashMap<>();
+    private final List<String> netNames = new ArrayList<>();
+    private final HashMap<String, Integer> netIds = new HashMap<>();
+
+    /**
+     * Add an object. Returns false if the object does not belong to the current
+     * polarity level or the buffer is full. The buffer has to be flushed in this
+     * case.
+     */
+    boolean add(boolean dark, Aperture aperture, String net, boolean draw, double x1, double y1, double x2,
+            double y2) {
+        if (size == 0)
+            this.dark = dark;
+        else if (this.dark != dark || size == MAX_SIZE)
+            return false;
+
+        Integer group = apertureGroups.get(aperture);
+        if (group == null) {
+            if (apertures.size() == MAX_GROUPS)
+                return false;
+            group = apertures.size();
+            apertures.add(aperture);
+            apertureGroups.put(aperture, group);
+        }
+
+        int netId = -1;
+        if (net != null) {
+            Integer id = netIds.get(net);
+            if (id == null) {
+                id = netNames.size();
+                netNames.add(net);
+                netIds.put(net, id);
+            }
+            netId = id;
+        }
+
+        if (size == groups.length) {
+            int capacity = size * 2;
+            coordinates = Arrays.copyOf(coordinates, 4 * capacity);
+            groups = Arrays.copyOf(groups, capacity);
+            nets = Arrays.copyOf(nets, capacity);
+            draws = Arrays.copyOf(draws, capacity);
+        }
+        coordinates[4 * size] = x1;
+        coordinates[4 * size + 1] = y1;
+        coordinates[4 * size + 2] = x2;
+        coordinates[4 * size + 3] = y2;
+        groups[size] = group;
+        nets[size] = netId;
+        draws[size] = draw;
+        size++;
+        return true;
+    }
+
+    void flush(Emitter emitter) {
+        if (size == 0)
+            return;
+
+        // bounds of the start points, mapped to the Hilbert grid
+        double minX = Double.POSITIVE_INFINITY, minY = Double.POSITIVE_INFINITY;
+        double maxX = Double.NEGATIVE_INFINITY, maxY = Double.NEGATIVE_INFINITY;
+        for (int i = 0; i < size; i++) {
+            minX = Math.min(minX, coordinates[4 * i]);
+            maxX = Math.max(maxX, coordinates[4 * i]);
+            minY = Math.min(minY, coordinates[4 * i + 1]);
+            maxY = Math.max(maxY, coordinates[4 * i + 1]);
+        }
+        int gridSize = 1 << HILBERT_ORDER;
+        double scale = (gridSize - 1) / Math.max(Math.max(maxX - minX, maxY - minY), 1e-9);
+
+        if (keys == null || keys.length < size)
+            keys = new long[groups.length];
+        for (int i = 0; i < size; i++) {
+            int x = (int) ((coordinates[4 * i] - minX) * scale);
+            int y = (int) ((coordinates[4 * i + 1] - minY) * scale);
+            keys[i] = ((long) groups[i] << (HILBERT_BITS + INDEX_BITS))
+                    | (hilbertIndex(gridSize, x, y) << INDEX_BITS) | i;
+        }
+        Arrays.sort(keys, 0, size);
+
+        for (int k = 0; k < size; k++) {
+            int i = (int) (keys[k] & (MAX_SIZE - 1));
+            emitter.emit(dark, apertures.get(groups[i]), nets[i] == -1 ? null : netNames.get(nets[i]), draws[i],
+                    coordinates[4 * i], coordinates[4 * i + 1], coordinates[4 * i + 2], coordinates[4 * i + 3]);
+        }
+
+        size = 0;
+        apertures.clear();
+        apertureGroups.clear();
+        netNames.clear();
+        netIds.clear();
+    }
+
+    /**
+     * Position of a grid cell along the Hilbert curve filling a grid of n x n
+     * cells, n being a power of two.
+     */
+    static long hilbertIndex(int n, int x, int y) {
+        long d = 0;
+        for (int s = n / 2; s > 0; s /= 2) {
+            int rx = (x & s) > 0 ? 1 : 0;
+            int ry = (y & s) > 0 ? 1 : 0;
+            d += (long) s * s * ((3 * rx) ^ ry);
+            if (ry == 0) {
+                if (rx == 1) {
+                    x = n - 1 - x;
+                    y = n - 1 - y;
+                }
+                int t = x;
+                x = y;
+                y = t;
+            }
+        }
+        return d;
+    }
+}
@@ -0,0 +1,236 @@
+package com.github.ruediste;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Encodes the commands into a single producer single consumer ring of direct
+ * buffers. A separate thread decodes the buffers and passes the commands to
+ * the target output. When all buffers are waiting to be decoded, the producer
+ * blocks.
+ */
+class PipelinedOutput implements GerberOutput {
+
+    private static final byte TEXT_PART = 1;
+    private static final byte TEXT_END = 2;
+    private static final byte POLARITY = 3;
+    private static final byte APERTURE = 4;
+    private static final byte OPERATION = 5;
+
+    /**
+     * Size of the largest fixed size command
+     */
+    private static final int MAX_COMMAND_SIZE = 10;
+
+    private final GerberOutput target;
+    private final ByteBuffer[] chunks;
+
+    // number of chunks handed to the consumer and number of chunks the consumer
+    // is done with. The producer fills the chunk at published % chunks.length
+    private final AtomicLong published = new AtomicLong();
+    private final AtomicLong consumed = new AtomicLong();
+
+    private volatile boolean closed;
+    private volatile Throwable failure;
+    private volatile Thread waitingProducer;
+
+    private final Thread consumer;
+
+    // chunk filled by the producer, null while waiting for a free chunk
+    private ByteBuffer current;
+
+    PipelinedOutput(GerberOutput target, int chunkSize, int chunkCount) {
+        if (chunkSize < 2 * MAX_COMMAND_SIZE || chunkCount < 2)
+            throw new IllegalArgumentException("Chunks too small or too few");
+        this.target = target;
+        chunks = new ByteBuffer[chunkCount];
+        for (int i = 0; i < chunkCount; i++)
+            chunks[i] = ByteBuffer.allocateDirect(chunkSize).order(ByteOrder.nativeOrder());
+        current = chunks[0];
+
+        consumer = new Thread(this::consume, "gerber-output");
+        consumer.setDaemon(true);
+        consumer.start();
+    }
+
+    @Override
+    public void text(String line) {
+        var bytes = line.getBytes(StandardCharsets.UTF_8);
+        int offset = 0;
+        while (true) {
+            ensureRemaining(MAX_COMMAND_SIZE);
+            int length = Math.min(current.remaining() - 5, bytes.length - offset);
+            boolean last = offset + length == bytes.length;
+            current.put(last ? TEXT_END : TEXT_PART).putInt(length).put(bytes, offset, length);
+            offset += length;
+            if (last)
+                break;
+        }
+    }
+
+    @Override
+    public void polarity(boolean dark) {
+        ensureRemaining(2);
+        current.put(POLARITY).put((byte) (dark ? 1 : 0));
+    }
+
+    @Override
+    public void aperture(int nr) {
+        ensureRemaining(5);
+        current.put(APERTURE).putInt(nr);
+    }
+
+    @Override
+    public void operation(int code, int x, int y) {
+        ensureRemaining(10);
+        current.put(OPERATION).put((byte) code).putInt(x).putInt(y);
+    }
+
+    private void ensureRemaining(int bytes) {
+        if (current == null || current.remaining() < bytes) {
+            checkFailure();
+            if (current != null)
+                publish();
+            acquire();
+        }
+    }
+
+    private void publish() {
+        current.flip();
+        current = null;
+        published.incrementAndGet();
+        LockSupport.unpark(consumer);
+    }
+
+    private void acquire() {
+        while (published.get() - consumed.get() >= chunks.length) {
+            checkFailure();
+            // the consumer unparks the waiting producer after each chunk, the re-check
+            // avoids missing the wake-up
+            waitingProducer = Thread.currentThread();
+            if (published.get() - consumed.get() >= chunks.length)
+                LockSupport.park(this);
+            waitingProducer = null;
+        }
+        current = chunks[(int) (published.get() % chunks.length)];
+        current.clear();
+    }
+
+    private void checkFailure() {
+        var t = failure;
+        if (t != null) {
+            if (t instanceof IOException e)
+                throw new UncheckedIOException(e);
+            throw new RuntimeException("Error in output thread", t);
+        }
+    }
+
+    /**
+     * Publish the remaining commands and wait for the output thread to finish.
+     * Also stops the output thread if a previous command failed.
+     */
+    @Override
+    public void close() throws IOException {
+        if (closed)
+            return;
+        if (current != null) {
+            current.flip();
+            current = null;
+            published.incrementAndGet();
+        }
+        closed = true;
+        LockSupport.unpark(consumer);
+        try {
+            consumer.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException();
+        }
+        var t = failure;
+        if (t instanceof IOException e)
+            throw e;
+        if (t != null)
+            throw new IOException("Error in output thread", t);
+    }
+
+    private void consume() {
+        var decoder = new Decoder();
+        while (true) {
+            long next = consumed.get();
+            if (next == published.get()) {
+                if (closed) {
+                    if (next == published.get())
+                        break;
+                    continue;
+                }
+                // the producer unparks the consumer after publishing or closing
+                LockSupport.park(this);
+                continue;
+            }
+
+            var chunk = chunks[(int) (next % chunks.length)];
+            if (failure == null) {
+                try {
+                    decoder.decode(chunk);
+                } catch (Throwable t) {
+                    failure = t;
+                }
+            }
+            consumed.set(next + 1);
+            var producer = waitingProducer;
+            if (producer != null)
+                LockSupport.unpark(producer);
+        }
+
+        try {
+            target.close();
+        } catch (Throwable t) {
+            if (failure == null)
+                failure = t;
+        }
+    }
+
+    private class Decoder {
+        private byte[] text = new byte[256];
+        private int textLength;
+
+        void decode(ByteBuffer chunk) {
+            while (chunk.hasRemaining()) {
+                byte command = chunk.get();
+                switch (command) {
+                    case TEXT_PART:
+                    case TEXT_END: {
+                        int length = chunk.getInt();
+                        if (textLength + length > text.length)
+                            text = Arrays.copyOf(text, Math.max(2 * text.length, textLength + length));
+                        chunk.get(text, textLength, length);
+                        textLength += length;
+                        if (command == TEXT_END) {
+                            target.text(new String(text, 0, textLength, StandardCharsets.UTF_8));
+                            textLength = 0;
+                        }
+                        break;
+                    }
+                    case POLARITY:
+                        target.polarity(chunk.get() != 0);
+                        break;
+                    case APERTURE:
+                        target.aperture(chunk.getInt());
+                        break;
+                    case OPERATION:
+                        target.operation(chunk.get(), chunk.getInt(), chunk.getInt());
+                        break;
+                    default:
+                        throw new IllegalStateException("Unknown command");
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,104 @@
+package com.github.ruediste;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Simple single stroke font. Glyphs are drawn on a grid of {@value #WIDTH} by
+ * {@value #HEIGHT} units, with the origin in the bottom left corner. Lower case
+ * letters are drawn as upper case, unknown characters as '?'.
+ */
+public class StrokeFont {
+    public static final int WIDTH = 4;
+    public static final int HEIGHT = 6;
+
+    /**
+     * Distance between the origins of two consecutive glyphs
+     */
+    public static final int ADVANCE = 6;
+
+    private static final Map<Character, List<List<Vector>>> glyphs = new HashMap<>();
+
+    static {
+        glyph('0', "0,0 4,0 4,6 0,6 0,0;0,0 4,6");
+        glyph('1', "1,5 2,6 2,0;1,0 3,0");
+        glyph('2', "0,5 1,6 3,6 4,5 4,4 0,0 4,0");
+        glyph('3', "0,6 4,6 2,4 3,4 4,3 4,1 3,0 1,0 0,1");
+        glyph('4', "3,0 3,6 0,2 4,2");
+        glyph('5', "4,6 0,6 0,4 3,4 4,3 4,1 3,0 0,0");
+        glyph('6', "4,6 1,6 0,5 0,1 1,0 3,0 4,1 4,2 3,3 0,3");
+        glyph('7', "0,6 4,6 1,0");
+        glyph('8', "1,3 0,4 0,5 1,6 3,6 4,5 4,4 3,3 1,3 0,2 0,1 1,0 3,0 4,1 4,2 3,3");
+        glyph('9', "4,3 1,3 0,4 0,5 1,6 3,6 4,5 4,1 3,0 0,0");
+        glyph('A', "0,0 0,4 2,6 4,4 4,0;0,3 4,3");
+        glyph('B', "0,0 0,6 3,6 4,5 4,4 3,3 0,3;3,3 4,2 4,1 3,0 0,0");
+        glyph('C', "4,5 3,6 1,6 0,5 0,1 1,0 3,0 4,1");
+        glyph('D', "0,0 0,6 2,6 4,4 4,2 2,0 0,0");
+        glyph('E', "4,6 0,6 0,0 4,0;0,3 3,3");
+        glyph('F', "4,6 0,6 0,0;0,3 3,3");
+        glyph('G', "4,5 3,6 1,6 0,5 0,1 1,0 3,0 4,1 4,3 2,3");
+        glyph('H', "0,0 0,6;4,0 4,6;0,3 4,3");
+        glyph('I', "1,6 3,6;2,6 2,0;1,0 3,0");
+        glyph('J', "4,6 4,1 3,0 1,0 0,1");
+        glyph('K', "0,0 0,6;4,6 0,2;1,3 4,0");
+        glyph('L', "0,6 0,0 4,0");
+        glyph('M', "0,0 0,6 2,3 4,6 4,0");
+        glyph('N', "0,0 0,6 4,0 4,6");
+        glyph('O', "1,0 0,1 0,5 1,6 3,6 4,5 4,1 3,0 1,0");
+        glyph('P', "0,0 0,6 3,6 4,5 4,4 3,3 0,3");
+        glyph('Q', "1,0 0,1 0,5 1,6 3,6 4,5 4,1 3,0 1,0;2,2 4,0");
+        glyph('R', "0,0 0,6 3,6 4,5 4,4 3,3 0,3;2,3 4,0");
+        glyph('S', "4,5 3,6 1,6 0,5 0,4 1,3 3,3 4,2 4,1 3,0 1,0 0,1");
+        glyph('T', "0,6 4,6;2,6 2,0");
+        glyph('U', "0,6 0,1 1,0 3,0 4,1 4,6");
+        glyph('V', "0,6 2,0 4,6");
+        glyph('W', "0,6 1,0 2,3 3,0 4,6");
+        glyph('X', "0,0 4,6;0,6 4,0");
+        glyph('Y', "0,6 2,3 4,6;2,3 2,0");
+        glyph('Z', "0,6 4,6 0,0 4,0");
+        glyph('.', "2,0 2,0.5");
+        glyph(',', "2,1 1,-1");
+        glyph('-', "1,3 3,3");
+        glyph('+', "0,3 4,3;2,1 2,5");
+        glyph('/', "0,0 4,6");
+        glyph(':', "2,1 2,1.5;2,4 2,4.5");
+        glyph('=', "0,2 4,2;0,4 4,4");
+        glyph('(', "3,6 1,4 1,2 3,0");
+        glyph(')', "1,6 3,4 3,2 1,0");
+        glyph('?', "0,5 1,6 3,6 4,5 4,4 2,3 2,2;2,0 2,0.5");
+        glyph(' ', "");
+    }
+
+    private static void glyph(char c, String strokes) {
+        var result = new ArrayList<List<Vector>>();
+        for (var stroke : strokes.split(";")) {
+            if (stroke.isEmpty())
+                continue;
+            var points = new ArrayList<Vector>();
+            for (var point : stroke.split(" ")) {
+                var parts = point.split(",");
+                points.add(Vector.vector(Double.parseDouble(parts[0]), Double.parseDouble(parts[1])));
+            }
+            result.add(points);
+        }
+        glyphs.put(c, result);
+    }
+
+    /**
+     * Return the strokes of a glyph. Each stroke is a polyline in grid units.
+     */
+    public static List<List<Vector>> strokes(char c) {
+        var result = glyphs.get(Character.toUpperCase(c));
+        return result == null ? glyphs.get('?') : result;
+    }
+
+    /**
+     * Return the width of a text in grid units, not including any spacing after
+     * the last glyph.
+     */
+    public static int width(String text) {
+        return text.isEmpty() ? 0 : text.length() * ADVANCE - (ADVANCE - WIDTH);
+    }
+}
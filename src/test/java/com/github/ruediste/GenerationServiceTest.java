@@ -0,0 +1,153 @@
+package com.github.ruediste;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.jupiter.api.Test;
+
+import com.github.ruediste.GenerationService.ByteLruCache;
+import com.github.ruediste.GenerationService.PanelParameters;
+
+/**
+ * Checks the request merging and the cache of the service, without HTTP
+ */
+public class GenerationServiceTest {
+
+    private static final int REQUESTS = 4;
+
+    private final PanelParameters parameters = PanelParameters.defaults();
+    private final AtomicInteger generations = new AtomicInteger();
+    private final CountDownLatch release = new CountDownLatch(1);
+
+    @Test
+    public void concurrentIdenticalRequestsGenerateOnce() throws Exception {
+        var zip = new byte[] { 1, 2, 3 };
+        var service = new GenerationService(1000, p -> {
+            generations.incrementAndGet();
+            release.await();
+            return zip;
+        });
+
+        var results = new byte[REQUESTS][];
+        var threads = start(i -> results[i] = service.generate(parameters));
+        // one thread waits in the generation, the others on its result
+        awaitWaiting(threads);
+        release.countDown();
+        join(threads);
+
+        assertEquals(1, generations.get());
+        for (var result : results)
+            assertSame(zip, result);
+        // served from the cache
+        assertSame(zip, service.generate(parameters));
+        assertEquals(1, generations.get());
+    }
+
+    @Test
+    public void failingGenerationFailsEveryWaiter() throws Exception {
+        var failure = new Error("generation failed");
+        var service = new GenerationService(1000, p -> {
+            if (generations.incrementAndGet() == 1) {
+                release.await();
+                throw failure;
+            }
+            return new byte[] { 1 };
+        });
+
+        var thrown = new Throwable[REQUESTS];
+        var threads = start(i -> {
+            try {
+                service.generate(parameters);
+            } catch (Throwable t) {
+                thrown[i] = t;
+            }
+        });
+        awaitWaiting(threads);
+        release.countDown();
+        join(threads);
+
+        for (var t : thrown) {
+            assertNotNull(t);
+            assertTrue(t == failure || t.getCause() == failure, "unexpected " + t);
+        }
+        // the failure is neither cached nor left in flight
+        assertEquals(1, service.generate(parameters).length);
+        assertEquals(2, generations.get());
+    }
+
+    @Test
+    public void cacheEvictsLeastRecentlyUsedBytes() {
+        var cache = new ByteLruCache<String>(10);
+        cache.put("a", new byte[4]);
+        cache.put("b", new byte[4]);
+        cache.get("a");
+        cache.put("c", new byte[4]);
+        assertNotNull(cache.get("a"));
+        assertNull(cache.get("b"));
+        assertNotNull(cache.get("c"));
+
+        // replacing a value only counts the new size
+        cache.put("a", new byte[6]);
+        assertNotNull(cache.get("a"));
+        assertNotNull(cache.get("c"));
+
+        cache.put("d", new byte[10]);
+        assertNull(cache.get("a"));
+        assertNull(cache.get("c"));
+        assertNotNull(cache.get("d"));
+    }
+
+    @Test
+    public void cacheSkipsValuesLargerThanTheLimit() {
+        var cache = new ByteLruCache<String>(10);
+        cache.put("a", new byte[4]);
+        cache.put("b", new byte[11]);
+        assertNull(cache.get("b"));
+        assertNotNull(cache.get("a"));
+    }
+
+    private interface Request {
+        void run(int i) throws Exception;
+    }
+
+    private List<Thread> start(Request request) {
+        var threads = new ArrayList<Thread>();
+        for (int i = 0; i < REQUESTS; i++) {
+            int nr = i;
+            var thread = new Thread(() -> {
+                try {
+                    request.run(nr);
+                } catch (Exception e) {
+                    throw new RuntimeException(e);
+                }
+            });
+            thread.start();
+            threads.add(thread);
+        }
+        return threads;
+    }
+
+    private void awaitWaiting(List<Thread> threads) throws InterruptedException {
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(10);
+        while (threads.stream().anyMatch(t -> t.getState() != Thread.State.WAITING)) {
+            assertTrue(System.nanoTime() < deadline, "requests did not block");
+            Thread.sleep(1);
+        }
+    }
+
+    private void join(List<Thread> threads) throws InterruptedException {
+        for (var thread : threads) {
+            thread.join(TimeUnit.SECONDS.toMillis(10));
+            assertTrue(!thread.isAlive(), "request did not finish");
+        }
+    }
+}
@@ -0,0 +1,101 @@
+package com.github.ruediste;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.UUID;
+import java.util.function.Consumer;
+import java.util.regex.Pattern;
+
+import org.junit.jupiter.api.Test;
+
+/**
+ * Checks the stroke font text, which flashes one block aperture per glyph
+ */
+public class GerberWriterTextTest {
+
+    private static final UUID IDENT = new UUID(0, 1);
+    private static final Pattern FLASH = Pattern.compile("X(-?\\d+)Y(-?\\d+)D03\\*");
+
+    @Test
+    public void definesEachGlyphOnce() throws Exception {
+        var lines = write(g -> {
+            g.text("11 A1", 0, 0, 1, 0.1, true);
+            g.text("1A", 0, 2, 1, 0.1, true);
+            // each differs from the glyphs above in one property
+            g.text("1", 0, 4, 1, 0.1, false);
+            g.text("1", 0, 6, 2, 0.1, true);
+            g.text("1", 0, 8, 1, 0.2, true);
+        });
+        assertEquals(5, lines.stream().filter(l -> l.startsWith("%ABD")).count(), "block apertures");
+        assertEquals(4 + 2 + 1 + 1 + 1, flashes(lines).size(), "flashes");
+    }
+
+    @Test
+    public void mirroredTextRunsRightToLeft() throws Exception {
+        var normal = flashes(write(g -> g.text("123", 10, 0, 1, 0.1, false)));
+        var mirrored = flashes(write(g -> g.text("123", 10, 0, 1, 0.1, true)));
+        assertEquals(3, normal.size());
+        assertEquals(3, mirrored.size());
+        for (int i = 1; i < 3; i++) {
+            assertTrue(normal.get(i) > normal.get(i - 1));
+            assertTrue(mirrored.get(i) < mirrored.get(i - 1));
+        }
+        // mirrored at the center of the text, up to rounding
+        for (int i = 0; i < 3; i++)
+            assertTrue(Math.abs(normal.get(i) + mirrored.get(i) - 20_000_000) <= 1);
+    }
+
+    @Test
+    public void restoresPolarity() throws Exception {
+        var lines = write(g -> {
+            g.polarityClear().text("12", 0, 0, 1, 0.1, true);
+            g.apertureCircle(1).flash(5, 0);
+        });
+        boolean inBlock = false;
+        String polarity = null;
+        int flashes = 0;
+        for (var line : lines) {
+            if (line.startsWith("%ABD"))
+                inBlock = true;
+            else if (line.equals("%AB*%"))
+                inBlock = false;
+            else if (line.startsWith("%LP")) {
+                // the glyphs themselves are dark, the text takes the polarity of the caller
+                if (inBlock)
+                    assertEquals("%LPD*%", line);
+                else
+                    polarity = line;
+            } else if (line.endsWith("D03*")) {
+                assertEquals("%LPC*%", polarity);
+                flashes++;
+            }
+        }
+        assertEquals(3, flashes);
+    }
+
+    private List<String> write(Consumer<GerberWriter> text) throws Exception {
+        var out = new ByteArrayOutputStream();
+        try (var g = new GerberWriter(IDENT, out)) {
+            text.accept(g);
+        }
+        return List.of(new String(out.toByteArray(), StandardCharsets.UTF_8).split("\r?\n"));
+    }
+
+    /**
+     * X coordinates of the flashes, in the order of the file
+     */
+    private List<Long> flashes(List<String> lines) {
+        var result = new ArrayList<Long>();
+        for (var line : lines) {
+            var m = FLASH.matcher(line);
+            if (m.matches())
+                result.add(Long.parseLong(m.group(1)));
+        }
+        return result;
+    }
+}
@@ -0,0 +1,88 @@
+package com.github.ruediste;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.UUID;
+
+import org.junit.jupiter.api.Test;
+
+/**
+ * Checks that the counting writer reports what the text writer writes
+ */
+public class LayerStatisticsTest {
+
+    private static final UUID IDENT = new UUID(0, 1);
+
+    @Test
+    public void countsMatchText() throws Exception {
+        var out = new ByteArrayOutputStream();
+        try (var g = new GerberWriter(IDENT, out)) {
+            SampleGeometry.write(g);
+        }
+        var statistics = new LayerStatistics();
+        try (var g = new GerberWriter(IDENT, statistics)) {
+            SampleGeometry.write(g);
+        }
+        assertMatches(out.toByteArray(), statistics);
+    }
+
+    @Test
+    public void countsMatchTextWithBaseFile() throws Exception {
+        var baseFile = Files.createTempFile("base", ".gbr");
+        try {
+            // includes a non-ASCII comment to check the UTF-8 length
+            Files.writeString(baseFile, String.join(System.lineSeparator(), "G04 Gr\u00f6\u00dfe*",
+                    "%FSLAX46Y46*%", "%MOMM*%", "%ADD10C,0.500000*%", "%LPD*%", "D10*", "X-1000000Y0D03*",
+                    "X0Y0D02*", "X1000000Y0D01*", "M02*", "ignored after the end"), StandardCharsets.UTF_8);
+
+            var out = new ByteArrayOutputStream();
+            try (var g = new GerberWriter(IDENT, out, baseFile.toString())) {
+                SampleGeometry.write(g);
+            }
+            var statistics = new LayerStatistics();
+            try (var g = new GerberWriter(IDENT, statistics, baseFile.toString())) {
+                SampleGeometry.write(g);
+            }
+            assertMatches(out.toByteArray(), statistics);
+        } finally {
+            Files.delete(baseFile);
+        }
+    }
+
+    private void assertMatches(byte[] text, LayerStatistics statistics) {
+        assertEquals(text.length, statistics.bytes(), "bytes");
+
+        var lines = new String(text, StandardCharsets.UTF_8).split("\r?\n");
+        assertEquals(lines.length, statistics.commands(), "commands");
+
+        long apertures = 0, blockApertures = 0, flashes = 0, draws = 0, regions = 0, polarityLevels = 0;
+        boolean inRegion = false;
+        for (var line : lines) {
+            if (line.startsWith("%ADD"))
+                apertures++;
+            else if (line.startsWith("%ABD")) {
+                apertures++;
+                blockApertures++;
+            } else if (line.startsWith("%LP"))
+                polarityLevels++;
+            else if (line.equals("G36*")) {
+                regions++;
+                inRegion = true;
+            } else if (line.equals("G37*"))
+                inRegion = false;
+            else if (line.endsWith("D03*"))
+                flashes++;
+            else if (line.endsWith("D01*") && !inRegion)
+                draws++;
+        }
+        assertEquals(apertures, statistics.apertures(), "apertures");
+        assertEquals(blockApertures, statistics.blockApertures(), "block apertures");
+        assertEquals(flashes, statistics.flashes(), "flashes");
+        assertEquals(draws, statistics.draws(), "draws");
+        assertEquals(regions, statistics.regions(), "regions");
+        assertEquals(polarityLevels, statistics.polarityLevels(), "polarity levels");
+    }
+}
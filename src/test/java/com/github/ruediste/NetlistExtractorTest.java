@@ -0,0 +1,66 @@
+package com.github.ruediste;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotEquals;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+
+import org.junit.jupiter.api.Test;
+
+import com.github.ruediste.GerberWriter.Aperture;
+import com.github.ruediste.GerberWriter.ApertureType;
+import com.github.ruediste.Netlist.TestPoint;
+
+public class NetlistExtractorTest {
+
+    private final Aperture bar = new Aperture(10, ApertureType.RECTANGLE, 2, 1);
+    private final Aperture gap = new Aperture(11, ApertureType.RECTANGLE, 0.2, 1.2);
+    private final Aperture trace = new Aperture(12, ApertureType.CIRCLE, 0.2, 0.2);
+    private final Aperture pad = new Aperture(13, ApertureType.CIRCLE, 1, 1);
+
+    private NetlistExtractor extractor = new NetlistExtractor(0.01);
+
+    private void twoPads(boolean bridged) {
+        var layer = extractor.copperLayer(0);
+        layer.flash(bar, 0, 0, true);
+        layer.flash(gap, 0, 0, false);
+        if (bridged)
+            layer.draw(trace, -0.5, 0, 0.5, 0, true);
+        extractor.testPoint(new TestPoint(0, -0.5, 0, 0.6, 0.6, 0, false));
+        extractor.testPoint(new TestPoint(0, 0.5, 0, 0.6, 0.6, 0, false));
+    }
+
+    @Test
+    public void gapSeparatesNets() {
+        twoPads(false);
+        var netlist = extractor.extract();
+        assertNotNull(netlist.net(0, -0.5, 0));
+        assertNotNull(netlist.net(0, 0.5, 0));
+        assertNotEquals(netlist.net(0, -0.5, 0), netlist.net(0, 0.5, 0));
+    }
+
+    @Test
+    public void drawBridgesGap() {
+        twoPads(true);
+        var netlist = extractor.extract();
+        assertNotNull(netlist.net(0, -0.5, 0));
+        assertEquals(netlist.net(0, -0.5, 0), netlist.net(0, 0.5, 0));
+    }
+
+    @Test
+    public void drillConnectsLayers() {
+        var top = extractor.copperLayer(0);
+        var bottom = extractor.copperLayer(1);
+        top.flash(pad, 0, 0, true);
+        bottom.flash(pad, 0, 0, true);
+        bottom.flash(pad, 5, 0, true);
+        extractor.drillLayer().flash(trace, 0, 0, true);
+        extractor.testPoint(new TestPoint(0, 0, 0, 1, 1, 0, false));
+        extractor.testPoint(new TestPoint(1, 0, 0, 1, 1, 0, false));
+        extractor.testPoint(new TestPoint(1, 5, 0, 1, 1, 0, false));
+
+        var netlist = extractor.extract();
+        assertNotNull(netlist.net(0, 0, 0));
+        assertEquals(netlist.net(0, 0, 0), netlist.net(1, 0, 0));
+        assertNotEquals(netlist.net(1, 0, 0), netlist.net(1, 5, 0));
+    }
+}
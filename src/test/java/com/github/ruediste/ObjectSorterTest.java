@@ -0,0 +1,84 @@
+package com.github.ruediste;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import org.junit.jupiter.api.Test;
+
+import com.github.ruediste.GerberWriter.Aperture;
+import com.github.ruediste.GerberWriter.ApertureType;
+
+public class ObjectSorterTest {
+
+    @Test
+    public void hilbertIndex() {
+        int[][] expected = { { 0, 0 }, { 1, 0 }, { 1, 1 }, { 0, 1 }, { 0, 2 }, { 0, 3 }, { 1, 3 }, { 1, 2 },
+                { 2, 2 }, { 2, 3 }, { 3, 3 }, { 3, 2 }, { 3, 1 }, { 2, 1 }, { 2, 0 }, { 3, 0 } };
+        for (int d = 0; d < expected.length; d++)
+            assertEquals(d, ObjectSorter.hilbertIndex(4, expected[d][0], expected[d][1]));
+    }
+
+    @Test
+    public void polarityLevelsKeepTheirObjects() {
+        var random = new Random(0);
+        var apertures = List.of(new Aperture(10, ApertureType.CIRCLE, 0.2, 0.2),
+                new Aperture(11, ApertureType.RECTANGLE, 1, 2), new Aperture(12, ApertureType.CIRCLE, 0.5, 0.5));
+        var nets = new String[] { null, "N1", "N2" };
+
+        var expected = new ArrayList<String>();
+        var actual = new ArrayList<String>();
+        var sorter = new ObjectSorter();
+        ObjectSorter.Emitter emitter = (dark, aperture, net, draw, x1, y1, x2, y2) -> actual
+                .add(describe(dark, aperture, net, draw, x1, y1, x2, y2));
+
+        boolean dark = true;
+        for (int i = 0; i < 2000; i++) {
+            if (random.nextInt(50) == 0)
+                dark = !dark;
+            var aperture = apertures.get(random.nextInt(apertures.size()));
+            var net = nets[random.nextInt(nets.length)];
+            boolean draw = random.nextBoolean();
+            double x1 = random.nextInt(1000) / 10., y1 = random.nextInt(1000) / 10.;
+            double x2 = draw ? random.nextInt(1000) / 10. : x1, y2 = draw ? random.nextInt(1000) / 10. : y1;
+            expected.add(describe(dark, aperture, net, draw, x1, y1, x2, y2));
+            if (!sorter.add(dark, aperture, net, draw, x1, y1, x2, y2)) {
+                sorter.flush(emitter);
+                sorter.add(dark, aperture, net, draw, x1, y1, x2, y2);
+            }
+        }
+        sorter.flush(emitter);
+
+        var expectedLevels = levels(expected);
+        var actualLevels = levels(actual);
+        assertEquals(expectedLevels.size(), actualLevels.size());
+        for (int i = 0; i < expectedLevels.size(); i++) {
+            expectedLevels.get(i).sort(null);
+            actualLevels.get(i).sort(null);
+            assertEquals(expectedLevels.get(i), actualLevels.get(i));
+        }
+    }
+
+    /**
+     * Split the objects into runs of the same polarity
+     */
+    private List<List<String>> levels(List<String> objects) {
+        var result = new ArrayList<List<String>>();
+        String polarity = null;
+        for (var object : objects) {
+            var objectPolarity = object.substring(0, object.indexOf(' '));
+            if (!objectPolarity.equals(polarity))
+                result.add(new ArrayList<>());
+            polarity = objectPolarity;
+            result.get(result.size() - 1).add(object);
+        }
+        return result;
+    }
+
+    private String describe(boolean dark, Aperture aperture, String net, boolean draw, double x1, double y1,
+            double x2, double y2) {
+        return dark + " " + aperture.nr + " " + net + " " + draw + " " + x1 + " " + y1 + " " + x2 + " " + y2;
+    }
+}
@@ -0,0 +1,95 @@
+package com.github.ruediste;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.UUID;
+
+import org.junit.jupiter.api.Test;
+
+public class PipelinedOutputTest {
+
+    private static final UUID IDENT = new UUID(0, 1);
+
+    private byte[] write(boolean pipelined) throws Exception {
+        var out = new ByteArrayOutputStream();
+        var g = new GerberWriter(IDENT, out);
+        if (pipelined)
+            g.pipelined(20, 2);
+        SampleGeometry.write(g);
+        g.close();
+        return out.toByteArray();
+    }
+
+    @Test
+    public void sameOutputAsSynchronous() throws Exception {
+        assertArrayEquals(write(false), write(true));
+    }
+
+    /**
+     * Fails after a number of operations
+     */
+    private static class FailingOutput implements GerberOutput {
+        private int remaining;
+        volatile boolean closed;
+
+        FailingOutput(int remaining) {
+            this.remaining = remaining;
+        }
+
+        @Override
+        public void text(String line) {
+        }
+
+        @Override
+        public void polarity(boolean dark) {
+        }
+
+        @Override
+        public void aperture(int nr) {
+        }
+
+        @Override
+        public void operation(int code, int x, int y) {
+            if (remaining-- == 0)
+                throw new IllegalStateException("target failed");
+        }
+
+        @Override
+        public void close() {
+            closed = true;
+        }
+    }
+
+    @Test
+    public void targetFailureIsRethrown() throws Exception {
+        var target = new FailingOutput(100);
+        var output = new PipelinedOutput(target, 20, 2);
+        assertThrows(RuntimeException.class, () -> {
+            for (int i = 0; i < 100_000; i++)
+                output.operation(1, i, i);
+        });
+
+        // closing after the failure still stops the output thread
+        var e = assertThrows(IOException.class, output::close);
+        assertEquals("target failed", e.getCause().getMessage());
+        assertTrue(target.closed);
+    }
+
+    @Test
+    public void streamFailureIsReportedByClose() throws Exception {
+        var g = new GerberWriter(IDENT, new OutputStream() {
+            @Override
+            public void write(int b) throws IOException {
+                throw new IOException("disk full");
+            }
+        }).pipelined(20, 2);
+        SampleGeometry.write(g);
+        assertThrows(IOException.class, g::close);
+    }
+}
@@ -0,0 +1,40 @@
+package com.github.ruediste;
+
+import java.util.Random;
+
+/**
+ * A command sequence exercising all outputs of a {@link GerberWriter}
+ */
+class SampleGeometry {
+
+    static void write(GerberWriter g) {
+        var random = new Random(1);
+        g.attrFilePolarity(true);
+        g.fileAttributesFinished();
+        for (int i = 0; i < 3000; i++) {
+            if (i % 37 == 0)
+                g.polarityClear();
+            else if (i % 37 == 5)
+                g.polarityDark();
+            g.net(i % 11 == 0 ? null : "NET_WITH_A_LONG_NAME_" + (i % 7));
+
+            // coordinates on both sides of the origin, some beyond 1000 mm
+            double x = (random.nextDouble() - 0.5) * (i % 13 == 0 ? 3000 : 200);
+            double y = (random.nextDouble() - 0.5) * 200;
+            switch (i % 5) {
+                case 0 -> g.apertureCircle(0.1 + i % 7 * 0.05).flash(x, y);
+                case 1 -> g.apertureRectangle(0.5, 0.25).flash(x, y);
+                case 2 -> g.apertureCircle(0.2).move(x, y).linearInterpolation().interpolate(x + 1, y - 1)
+                        .interpolate(x + 2, y);
+                case 3 -> g.contour(() -> {
+                    g.move(x, y).linearInterpolation();
+                    g.interpolate(x + 1, y);
+                    g.interpolate(x + 1, y + 1);
+                });
+                default -> g.rectangle(Vector.vector(x, y), 1, 0.5, i % 90);
+            }
+            if (i % 101 == 0)
+                g.text("R" + i + "?", x, y, 0.8, 0.15, i % 2 == 0);
+        }
+    }
+}